@@ -0,0 +1,368 @@
+package it.processmining.clustering.bench;
+
+import it.processmining.clustering.hierarchical.AverageLinkage;
+import it.processmining.clustering.hierarchical.BatchDistance;
+import it.processmining.clustering.hierarchical.CentroidLinkage;
+import it.processmining.clustering.hierarchical.CosineSimilarityDistance;
+import it.processmining.clustering.hierarchical.CutIndex;
+import it.processmining.clustering.hierarchical.EuclideanDistance;
+import it.processmining.clustering.hierarchical.HACluster;
+import it.processmining.clustering.hierarchical.HAClusterIO;
+import it.processmining.clustering.hierarchical.HAClusterer;
+import it.processmining.clustering.hierarchical.HATreeNode;
+import it.processmining.clustering.hierarchical.Linkage;
+import it.processmining.clustering.hierarchical.ManhattanDistance;
+import it.processmining.clustering.hierarchical.SingleLinkage;
+import it.processmining.clustering.hierarchical.SparseVector;
+import it.processmining.clustering.hierarchical.WardLinkage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.processmining.plugins.ActivityProfileBuilder;
+
+/**
+ * Benchmarks every stage of the clustering pipeline on synthetic profiles: the
+ * log scan of clusterRoles, the Distance kernels, HAClusterer.cluster() with
+ * each engine and with sampling, HACluster.insertInstance, HACluster.buildGroupsCutAt and the
+ * HAClusterIO file format.
+ *
+ * Every stage runs a few warmup iterations, then reports its throughput, the
+ * bytes allocated by the benchmark thread per operation and per second, and
+ * the peak heap usage, sampled every millisecond during the iterations. Only
+ * the operations are measured, not the preparation of their inputs, except for
+ * the heap usage. All the stages of a run see the same inputs, so engine
+ * changes can be compared across runs with the same parameters.
+ *
+ * Usage: PipelineBenchmark [-n 500,2000] [-d 1000] [-density 0.01]
+ * [-events 1000000] [-threads 1] [-precision double] [-warmup 2]
+ * [-iterations 5] [-seed 42]
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ */
+public class PipelineBenchmark {
+
+	private int[] sizes = { 500, 2000 };
+	private int dimensions = 1000;
+	private double density = 0.01;
+	private int events = 1000000;
+	private int threads = 1;
+	private HAClusterer.Precision precision = HAClusterer.Precision.DOUBLE;
+	private int warmup = 2;
+	private int iterations = 5;
+	private long seed = 42;
+
+	/* Results of the stages are written here, so that the JIT cannot drop the work */
+	static volatile double sink;
+
+	/**
+	 * A benchmarked stage: runs one operation per call
+	 */
+	private static abstract class Stage {
+		private String name;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Prepares the input of the next call of {@link #run()}, out of the
+		 * measurements
+		 */
+		void prepare() {
+		}
+
+		/**
+		 * @return a value depending on the result, to keep the JIT from dropping the work
+		 */
+		abstract double run();
+	}
+
+	public static void main(String[] args) {
+		PipelineBenchmark benchmark = new PipelineBenchmark();
+		benchmark.parse(args);
+		benchmark.runAll();
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-n")) {
+				String[] parts = value.split(",");
+				sizes = new int[parts.length];
+				for (int k = 0; k < parts.length; k++) {
+					sizes[k] = Integer.parseInt(parts[k].trim());
+				}
+			} else if (args[i].equals("-d")) {
+				dimensions = Integer.parseInt(value);
+			} else if (args[i].equals("-density")) {
+				density = Double.parseDouble(value);
+			} else if (args[i].equals("-events")) {
+				events = Integer.parseInt(value);
+			} else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(value);
+			} else if (args[i].equals("-precision")) {
+				precision = HAClusterer.Precision.valueOf(value.toUpperCase(Locale.ROOT));
+			} else if (args[i].equals("-warmup")) {
+				warmup = Integer.parseInt(value);
+			} else if (args[i].equals("-iterations")) {
+				iterations = Integer.parseInt(value);
+			} else if (args[i].equals("-seed")) {
+				seed = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+	}
+
+	private void runAll() {
+		System.out.println(String.format(Locale.ROOT, "%-40s %8s %12s %12s %14s %12s %10s", "stage", "n",
+				"ms/op", "ops/s", "alloc B/op", "alloc MB/s", "peak MB"));
+		for (int n : sizes) {
+			ProfileGenerator generator = new ProfileGenerator(n, dimensions, density, seed);
+			for (Stage stage : stages(generator, n)) {
+				measure(stage, n);
+			}
+		}
+	}
+
+	private List<Stage> stages(ProfileGenerator generator, final int n) {
+		final SparseVector[] sparse = generator.sparse();
+		final double[][] dense = generator.dense();
+		final String[] stream = generator.events(events);
+		List<Stage> stages = new ArrayList<Stage>();
+
+		stages.add(new Stage("scan (" + events + " events)") {
+			double run() {
+				ActivityProfileBuilder builder = new ActivityProfileBuilder();
+				for (int e = 0; e < stream.length; e += 2) {
+					builder.add(stream[e], stream[e + 1]);
+				}
+				return builder.getResourceCount();
+			}
+		});
+
+		BatchDistance[] metrics = { EuclideanDistance.create(), ManhattanDistance.create(),
+				CosineSimilarityDistance.create() };
+		for (final BatchDistance metric : metrics) {
+			String name = metric.getClass().getSimpleName();
+			stages.add(new Stage("pairwise dense " + name) {
+				double run() {
+					double[] row = new double[n];
+					double sum = 0;
+					for (int i = 0; i < n; i++) {
+						metric.computeDistances(dense[i], dense, i + 1, n, row);
+						sum += row[0];
+					}
+					return sum;
+				}
+			});
+			stages.add(new Stage("pairwise sparse " + name) {
+				double run() {
+					double[] row = new double[n];
+					double sum = 0;
+					for (int i = 0; i < n; i++) {
+						metric.computeDistances(sparse[i], sparse, i + 1, n, row);
+						sum += row[0];
+					}
+					return sum;
+				}
+			});
+		}
+
+		Linkage[] linkages = { null, SingleLinkage.create(), AverageLinkage.create(), WardLinkage.create(),
+				CentroidLinkage.create() };
+		for (final Linkage linkage : linkages) {
+			String name = linkage == null ? "centroid recompute" : linkage.getClass().getSimpleName();
+			stages.add(new Stage("cluster " + name) {
+				double run() {
+					return cluster(sparse, linkage).getRootNode().getMaxDistance();
+				}
+			});
+		}
+
+		stages.add(new Stage("cluster sample-and-assign n/10") {
+			double run() {
+				return cluster(sparse, AverageLinkage.create(), Math.max(2, n / 10)).getRootNode().getMaxDistance();
+			}
+		});
+
+		stages.add(new Stage("insertInstance x10") {
+			private HACluster growing;
+			private int next;
+
+			/* Every call inserts the same instances into a new cluster of n instances */
+			void prepare() {
+				growing = cluster(sparse, AverageLinkage.create());
+				next = 0;
+			}
+
+			double run() {
+				HATreeNode leaf = null;
+				for (int k = 0; k < 10; k++, next++) {
+					leaf = growing.insertInstance(sparse[next % n], "Inserted " + next);
+				}
+				return leaf.getId();
+			}
+		});
+
+		final HACluster cluster = cluster(sparse, AverageLinkage.create());
+		stages.add(new Stage("buildGroupsCutAt x10") {
+			double run() {
+				double groups = 0;
+				for (int t = 0; t < 10; t++) {
+					groups += cluster.buildGroupsCutAt(t / 10.).size();
+				}
+				return groups;
+			}
+		});
+		stages.add(new Stage("CutIndex group count x1000") {
+			double run() {
+				CutIndex index = cluster.getCutIndex();
+				double groups = 0;
+				for (int t = 0; t < 1000; t++) {
+					groups += index.getGroupCount(t / 1000.);
+				}
+				return groups;
+			}
+		});
+
+		final File file;
+		try {
+			file = File.createTempFile("benchmark", ".hac");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		file.deleteOnExit();
+		stages.add(new Stage("HAClusterIO write") {
+			double run() {
+				try {
+					HAClusterIO.write(cluster, file);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return file.length();
+			}
+		});
+		stages.add(new Stage("HAClusterIO read mapped") {
+			double run() {
+				try {
+					return HAClusterIO.read(file).getRootNode().getMaxDistance();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		return stages;
+	}
+
+	private HACluster cluster(SparseVector[] profiles, Linkage linkage) {
+		return cluster(profiles, linkage, 0);
+	}
+
+	private HACluster cluster(SparseVector[] profiles, Linkage linkage, int sampleSize) {
+		HAClusterer clusterer = new HAClusterer(dimensions, EuclideanDistance.create());
+		clusterer.setLinkage(linkage);
+		clusterer.setSampleSize(sampleSize);
+		clusterer.setParallelism(threads);
+		clusterer.setPrecision(precision);
+		for (int a = 0; a < profiles.length; a++) {
+			clusterer.addInstance(profiles[a], "Activity " + a);
+		}
+		return clusterer.cluster();
+	}
+
+	private void measure(Stage stage, int n) {
+		double blackhole = 0;
+		for (int i = 0; i < warmup; i++) {
+			stage.prepare();
+			blackhole += stage.run();
+		}
+
+		System.gc();
+		HeapSampler sampler = new HeapSampler();
+		sampler.start();
+		long allocated = 0;
+		long elapsed = 0;
+		for (int i = 0; i < iterations; i++) {
+			stage.prepare();
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			blackhole += stage.run();
+			elapsed += System.nanoTime() - start;
+			allocated = allocatedBefore < 0 || allocated < 0 ? -1 : allocated + allocatedBytes() - allocatedBefore;
+		}
+		long peak = sampler.finish();
+
+		double msPerOp = elapsed / 1e6 / iterations;
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format(Locale.ROOT, "%-40s %8d %12.3f %12.2f %14d %12.1f %10.1f",
+				stage.name, n, msPerOp, iterations / seconds, allocated < 0 ? -1 : allocated / iterations,
+				allocated < 0 ? -1 : allocated / 1e6 / seconds, peak / 1e6));
+		sink = blackhole;
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or -1 if the JVM
+	 * does not tell
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Samples the used heap in the background, keeping the highest value. The
+	 * peaks of the single memory pools are not summed, since they are not
+	 * reached at the same time.
+	 */
+	private static class HeapSampler extends Thread {
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private volatile boolean running = true;
+		private volatile long peak;
+
+		HeapSampler() {
+			setDaemon(true);
+			sample();
+		}
+
+		public void run() {
+			while (running) {
+				sample();
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private void sample() {
+			peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+		}
+
+		/**
+		 * Stops the sampling
+		 *
+		 * @return the highest heap usage sampled, in bytes
+		 */
+		long finish() {
+			running = false;
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sample();
+			return peak;
+		}
+	}
+}
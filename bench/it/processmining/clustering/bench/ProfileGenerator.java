@@ -0,0 +1,128 @@
+package it.processmining.clustering.bench;
+
+import it.processmining.clustering.hierarchical.SparseVector;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic activity profiles: n activities over a given number of
+ * resources, each performed by a fraction of the resources (the density). The
+ * activities are drawn around a few role prototypes, so that the hierarchy has
+ * some structure, and counts are log-scaled as in the RoleCluster plugin.
+ *
+ * The same seed always gives the same profiles.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ */
+public class ProfileGenerator {
+
+	private int activities;
+	private int resources;
+	private double density;
+	private long seed;
+
+	/**
+	 * @param activities the number of activities (instances)
+	 * @param resources the number of resources (dimensions)
+	 * @param density the fraction of resources performing each activity, in (0,1]
+	 * @param seed the random seed
+	 */
+	public ProfileGenerator(int activities, int resources, double density, long seed) {
+		this.activities = activities;
+		this.resources = resources;
+		this.density = density;
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the profiles as sparse vectors
+	 */
+	public SparseVector[] sparse() {
+		Random random = new Random(seed);
+		int roles = Math.max(1, (int) Math.sqrt(activities));
+		int perActivity = Math.max(1, (int) Math.round(resources * density));
+		int[][] prototypes = new int[roles][];
+		for (int r = 0; r < roles; r++) {
+			prototypes[r] = sample(random, Math.min(resources, 2 * perActivity));
+		}
+
+		SparseVector[] profiles = new SparseVector[activities];
+		for (int a = 0; a < activities; a++) {
+			int[] prototype = prototypes[random.nextInt(roles)];
+			boolean[] used = new boolean[resources];
+			int[] indices = new int[perActivity];
+			double[] values = new double[perActivity];
+			for (int k = 0; k < perActivity; k++) {
+				int resource;
+				do {
+					/* Mostly resources of the role, sometimes anybody */
+					resource = random.nextInt(10) < 8 ? prototype[random.nextInt(prototype.length)]
+							: random.nextInt(resources);
+				} while (used[resource]);
+				used[resource] = true;
+				indices[k] = resource;
+				int count = 1 + random.nextInt(100);
+				values[k] = Math.log(count + 1);
+			}
+			profiles[a] = new SparseVector(resources, indices, values);
+		}
+		return profiles;
+	}
+
+	/**
+	 * @return the same profiles as {@link #sparse()}, as dense vectors
+	 */
+	public double[][] dense() {
+		SparseVector[] sparse = sparse();
+		double[][] profiles = new double[sparse.length][];
+		for (int a = 0; a < sparse.length; a++) {
+			profiles[a] = sparse[a].toDense();
+		}
+		return profiles;
+	}
+
+	/**
+	 * Generates a stream of (activity, resource) events whose counts follow the
+	 * profiles, for benchmarking the log scan
+	 *
+	 * @param events the number of events
+	 * @return the activity names at even positions, the resource names at odd ones
+	 */
+	public String[] events(int events) {
+		Random random = new Random(seed);
+		SparseVector[] profiles = sparse();
+		String[] activityNames = new String[activities];
+		String[] resourceNames = new String[resources];
+		for (int a = 0; a < activities; a++) {
+			activityNames[a] = "Activity " + a;
+		}
+		for (int r = 0; r < resources; r++) {
+			resourceNames[r] = "Resource " + r;
+		}
+
+		String[] stream = new String[2 * events];
+		for (int e = 0; e < events; e++) {
+			int a = random.nextInt(activities);
+			int[] indices = profiles[a].getIndices();
+			stream[2 * e] = activityNames[a];
+			stream[2 * e + 1] = resourceNames[indices[random.nextInt(indices.length)]];
+		}
+		return stream;
+	}
+
+	private int[] sample(Random random, int size) {
+		int[] all = new int[resources];
+		for (int r = 0; r < resources; r++) {
+			all[r] = r;
+		}
+		for (int k = 0; k < size; k++) {
+			int swap = k + random.nextInt(resources - k);
+			int tmp = all[k];
+			all[k] = all[swap];
+			all[swap] = tmp;
+		}
+		int[] result = new int[size];
+		System.arraycopy(all, 0, result, 0, size);
+		return result;
+	}
+}
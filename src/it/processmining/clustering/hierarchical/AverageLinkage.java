@@ -0,0 +1,32 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Average linkage (UPGMA): the distance between two clusters is the mean
+ * distance between their members
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class AverageLinkage implements Linkage {
+
+	private static AverageLinkage instance = new AverageLinkage();
+
+	public double update(double dik, double djk, double dij, int ni, int nj, int nk) {
+		return (ni * dik + nj * djk) / (ni + nj);
+	}
+
+	public boolean isReducible() {
+		return true;
+	}
+
+	public boolean isSquared() {
+		return false;
+	}
+
+	private AverageLinkage() {}
+
+	public static AverageLinkage create() {
+		return instance;
+	}
+
+}
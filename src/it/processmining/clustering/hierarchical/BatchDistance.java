@@ -0,0 +1,52 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Block-oriented distance: computes the distances between one point and a range of
+ * points in a single call, to avoid paying a virtual call and two node dereferences
+ * for every pair.
+ * 
+ * Implementations return exactly the same values as
+ * {@link Distance#computeDistance(HATreeNode, HATreeNode)}.
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ */
+public interface BatchDistance extends Distance {
+
+	/**
+	 * Computes the distances between a point and the points from index from
+	 * (inclusive) to index to (exclusive)
+	 * 
+	 * @param a the point
+	 * @param others the other points
+	 * @param from the first index in others
+	 * @param to the index after the last one in others
+	 * @param result receives the distance to others[k] at result[k - from]
+	 */
+	public void computeDistances(double[] a, double[][] others, int from, int to, double[] result);
+
+	/**
+	 * Computes the distances between a point and the points from index from
+	 * (inclusive) to index to (exclusive), stored in single precision. The sums
+	 * are accumulated in double precision.
+	 * 
+	 * @param a the point
+	 * @param others the other points
+	 * @param from the first index in others
+	 * @param to the index after the last one in others
+	 * @param result receives the distance to others[k] at result[k - from]
+	 */
+	public void computeDistances(float[] a, float[][] others, int from, int to, double[] result);
+
+	/**
+	 * Computes the distances between a sparse point and the sparse points from
+	 * index from (inclusive) to index to (exclusive), in O(nnz) per pair
+	 * 
+	 * @param a the point
+	 * @param others the other points
+	 * @param from the first index in others
+	 * @param to the index after the last one in others
+	 * @param result receives the distance to others[k] at result[k - from]
+	 */
+	public void computeDistances(SparseVector a, SparseVector[] others, int from, int to, double[] result);
+
+}
@@ -0,0 +1,34 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Centroid linkage (UPGMC): the distance between two clusters is the distance
+ * between their size-weighted centroids. Works on squared distances, and is only
+ * meaningful for the Euclidean distance.
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class CentroidLinkage implements Linkage {
+
+	private static CentroidLinkage instance = new CentroidLinkage();
+
+	public double update(double dik, double djk, double dij, int ni, int nj, int nk) {
+		double nij = ni + nj;
+		return (ni * dik + nj * djk) / nij - ni * (nj * dij) / (nij * nij);
+	}
+
+	public boolean isReducible() {
+		return false;
+	}
+
+	public boolean isSquared() {
+		return true;
+	}
+
+	private CentroidLinkage() {}
+
+	public static CentroidLinkage create() {
+		return instance;
+	}
+
+}
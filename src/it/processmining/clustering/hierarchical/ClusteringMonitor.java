@@ -0,0 +1,30 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Monitor interface: follows the progress of {@link HAClusterer#cluster()}, and
+ * can stop it. It is called after every merge, so it should return quickly;
+ * {@link #isCancelled()} is also called by the threads computing the distances.
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ */
+public interface ClusteringMonitor {
+
+	/**
+	 * Reports a merge
+	 * 
+	 * @param merges the number of merges done
+	 * @param total the number of merges of the clustering, one less than the instances
+	 * @param remainingMillis the estimated time left, in milliseconds, or -1 if unknown
+	 */
+	public void merged(int merges, int total, long remainingMillis);
+
+	/**
+	 * Checked between merges, and while computing the distances. Once it returns
+	 * true the clustering stops with a
+	 * {@link java.util.concurrent.CancellationException}.
+	 * 
+	 * @return true to stop the clustering
+	 */
+	public boolean isCancelled();
+
+}
@@ -0,0 +1,32 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Complete linkage: the distance between two clusters is the distance between
+ * their farthest members
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class CompleteLinkage implements Linkage {
+
+	private static CompleteLinkage instance = new CompleteLinkage();
+
+	public double update(double dik, double djk, double dij, int ni, int nj, int nk) {
+		return Math.max(dik, djk);
+	}
+
+	public boolean isReducible() {
+		return true;
+	}
+
+	public boolean isSquared() {
+		return false;
+	}
+
+	private CompleteLinkage() {}
+
+	public static CompleteLinkage create() {
+		return instance;
+	}
+
+}
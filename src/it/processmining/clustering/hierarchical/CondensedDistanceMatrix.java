@@ -0,0 +1,181 @@
+package it.processmining.clustering.hierarchical;
+
+import java.io.IOException;
+
+/**
+ * Symmetric distance matrix with a zero diagonal, stored as its packed upper
+ * triangle. The pair (i, j) with i &lt; j is stored at j * (j - 1) / 2 + i, so
+ * the column of each index follows the columns of the smaller ones.
+ *
+ * It takes n * (n - 1) / 2 doubles, against the n * n of a full matrix, or as
+ * many floats in single precision. The values live either on the heap or in a
+ * memory-mapped file.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+abstract class CondensedDistanceMatrix {
+
+	private int size;
+
+	/**
+	 * @param size the number of rows (= columns)
+	 */
+	protected CondensedDistanceMatrix(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * Builds a zero matrix
+	 *
+	 * @param size the number of rows (= columns)
+	 * @param storage where the distances are stored
+	 * @param precision the precision of the stored distances
+	 * @return the matrix
+	 */
+	static CondensedDistanceMatrix create(int size, HAClusterer.Storage storage, HAClusterer.Precision precision) {
+		boolean single = precision == HAClusterer.Precision.SINGLE;
+		if (storage == HAClusterer.Storage.MAPPED) {
+			try {
+				return new MappedDistanceMatrix(size, single);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot map the distance matrix", e);
+			}
+		}
+		return single ? new HeapFloatDistanceMatrix(size) : new HeapDistanceMatrix(size);
+	}
+
+	/**
+	 * Returns the position of the pair (i, j), with i &lt; j, in the packed array
+	 *
+	 * @param i the smaller index
+	 * @param j the larger index
+	 * @return
+	 */
+	static long index(int i, int j) {
+		return (long) j * (j - 1) / 2 + i;
+	}
+
+	/**
+	 * @param size a matrix size
+	 * @return the length of the packed array of a matrix of that size
+	 */
+	static long offset(int size) {
+		return (long) size * (size - 1) / 2;
+	}
+
+	/**
+	 * @return the number of rows (= columns)
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Grows the matrix to a larger size, keeping the distances between the
+	 * current indices. The storage grows by a constant factor, so that appending
+	 * the indices one by one costs amortized O(size) each. The distances of the
+	 * new indices must be set before they are read.
+	 *
+	 * @param size the new number of rows (= columns)
+	 */
+	void grow(int size) {
+		if (size > this.size) {
+			ensureCapacity(offset(size));
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param length a length of the packed array
+	 * @param capacity the current capacity of the storage
+	 * @param limit the largest possible capacity
+	 * @return a capacity of at least length, 1.5 times the current one if possible
+	 */
+	static long grownCapacity(long length, long capacity, long limit) {
+		if (length > limit) {
+			throw new IllegalArgumentException("Too many instances for the distance matrix: " + length + " distances");
+		}
+		return Math.max(length, Math.min(limit, capacity + (capacity >> 1)));
+	}
+
+	/**
+	 * @param i the first index
+	 * @param j the second index
+	 * @return the distance between i and j
+	 */
+	double get(int i, int j) {
+		if (i < j) {
+			return getAt(index(i, j));
+		} else if (i > j) {
+			return getAt(index(j, i));
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the distance between i and j, with i != j
+	 *
+	 * @param i the first index
+	 * @param j the second index
+	 * @param value the distance
+	 */
+	void set(int i, int j, double value) {
+		if (i < j) {
+			setAt(index(i, j), value);
+		} else {
+			setAt(index(j, i), value);
+		}
+	}
+
+	/**
+	 * Tells the matrix the instance at an index, when it is added or moved.
+	 * Matrices that store the distances ignore it, as they are given the
+	 * distances with {@link #set(int, int, double)}.
+	 *
+	 * @param index the index of the instance
+	 * @param instance the instance
+	 */
+	void setInstance(int index, HATreeNode instance) {
+	}
+
+	/**
+	 * @param index a position in the packed array
+	 * @return the distance at that position
+	 */
+	protected abstract double getAt(long index);
+
+	/**
+	 * @param index a position in the packed array
+	 * @param value the distance to store at that position
+	 */
+	protected abstract void setAt(long index, double value);
+
+	/**
+	 * Makes room for a packed array of the given length
+	 *
+	 * @param length the length of the packed array
+	 */
+	protected abstract void ensureCapacity(long length);
+
+	/**
+	 * @return the precision of the stored distances
+	 */
+	abstract HAClusterer.Precision getPrecision();
+
+	/**
+	 * Squares every distance
+	 */
+	void square() {
+		long length = offset(size);
+		for (long k = 0; k < length; k++) {
+			double d = getAt(k);
+			setAt(k, d * d);
+		}
+	}
+
+	/**
+	 * @return a copy of this matrix, with the same storage
+	 */
+	abstract CondensedDistanceMatrix copy();
+}
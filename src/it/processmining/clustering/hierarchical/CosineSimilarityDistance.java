@@ -7,24 +7,116 @@ package it.processmining.clustering.hierarchical;
  * @author Alessandro Bruni <alessandro.bruni@gmail.com>
  *
  */
-public class CosineSimilarityDistance implements Distance {
+public class CosineSimilarityDistance implements BatchDistance {
 
 	private static CosineSimilarityDistance instance = new CosineSimilarityDistance();
 
 	public double computeDistance(HATreeNode n1, HATreeNode n2) {
+		SparseVector s1 = n1.getSparseData();
+		SparseVector s2 = n2.getSparseData();
+		if (s1 != null && s2 != null) {
+			return dot(s1, s2) / (Math.sqrt(dot(s1, s1)) * Math.sqrt(dot(s2, s2)));
+		}
+		float[] f1 = n1.getFloatData();
+		float[] f2 = n2.getFloatData();
+		if (f1 != null && f2 != null) {
+			return dot(f1, f2) / (Math.sqrt(dot(f1, f1)) * Math.sqrt(dot(f2, f2)));
+		}
 		double[] a1 = n1.getData();
 		double[] a2 = n2.getData();
-		double dot = 0;
-		double m1 = 0;
-		double m2 = 0;
+		return dot(a1, a2) / (Math.sqrt(dot(a1, a1)) * Math.sqrt(dot(a2, a2)));
+	}
+
+	public void computeDistances(double[] a, double[][] others, int from, int to, double[] result) {
+		double m1 = Math.sqrt(dot(a, a));
+		for (int k = from; k < to; k++) {
+			double[] a2 = others[k];
+			result[k - from] = dot(a, a2) / (m1 * Math.sqrt(dot(a2, a2)));
+		}
+	}
+
+	public void computeDistances(float[] a, float[][] others, int from, int to, double[] result) {
+		double m1 = Math.sqrt(dot(a, a));
+		for (int k = from; k < to; k++) {
+			float[] a2 = others[k];
+			result[k - from] = dot(a, a2) / (m1 * Math.sqrt(dot(a2, a2)));
+		}
+	}
+
+	public void computeDistances(SparseVector a, SparseVector[] others, int from, int to, double[] result) {
+		double m1 = Math.sqrt(dot(a, a));
+		for (int k = from; k < to; k++) {
+			SparseVector a2 = others[k];
+			result[k - from] = dot(a, a2) / (m1 * Math.sqrt(dot(a2, a2)));
+		}
+	}
 
-		for (int i = 0; i < a1.length; i++) {
-			dot += a1[i] * a2[i];
-			m1 += a1[i] * a1[i];
-			m2 += a2[i] * a2[i];
+	/**
+	 * Computes the dot product over four independent accumulators
+	 * 
+	 * @param a1 the first vector
+	 * @param a2 the second vector
+	 * @return the dot product
+	 */
+	static double dot(double[] a1, double[] a2) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (int end = a1.length - 3; i < end; i += 4) {
+			s0 += a1[i] * a2[i];
+			s1 += a1[i + 1] * a2[i + 1];
+			s2 += a1[i + 2] * a2[i + 2];
+			s3 += a1[i + 3] * a2[i + 3];
+		}
+		for (; i < a1.length; i++) {
+			s0 += a1[i] * a2[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	/**
+	 * Computes the dot product of single precision vectors in double precision
+	 * 
+	 * @param a1 the first vector
+	 * @param a2 the second vector
+	 * @return the dot product
+	 */
+	static double dot(float[] a1, float[] a2) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (int end = a1.length - 3; i < end; i += 4) {
+			s0 += (double) a1[i] * a2[i];
+			s1 += (double) a1[i + 1] * a2[i + 1];
+			s2 += (double) a1[i + 2] * a2[i + 2];
+			s3 += (double) a1[i + 3] * a2[i + 3];
+		}
+		for (; i < a1.length; i++) {
+			s0 += (double) a1[i] * a2[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	/**
+	 * Computes the dot product over the common non-zero coordinates
+	 * 
+	 * @param a1 the first vector
+	 * @param a2 the second vector
+	 * @return the dot product
+	 */
+	static double dot(SparseVector a1, SparseVector a2) {
+		int[] i1 = a1.getIndices(), i2 = a2.getIndices();
+		double[] v1 = a1.getValues(), v2 = a2.getValues();
+		double sum = 0;
+		int i = 0, j = 0;
+		while (i < i1.length && j < i2.length) {
+			if (i1[i] == i2[j]) {
+				sum += v1[i++] * v2[j++];
+			} else if (i1[i] < i2[j]) {
+				i++;
+			} else {
+				j++;
+			}
 		}
-		
-		return dot / (Math.sqrt(m1) * Math.sqrt(m2));
+		return sum;
 	}
 	
 	private CosineSimilarityDistance() {}
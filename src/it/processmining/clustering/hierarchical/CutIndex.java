@@ -0,0 +1,260 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.Arrays;
+
+/**
+ * Index answering threshold cuts of a hierarchy without traversing it.
+ *
+ * The instances are listed in the order of the dendrogram. Between two
+ * consecutive instances lies their lowest common ancestor, so a cut at threshold
+ * t separates them exactly when the normalized distance of that ancestor is above
+ * t, and the groups of a cut are runs of consecutive instances. The index keeps
+ * those n - 1 boundary heights:
+ * <ul>
+ * <li>sorted, to count the groups at t with a binary search, in O(log n);</li>
+ * <li>in dendrogram order, to assign the groups at t with a linear scan, in O(n);</li>
+ * <li>in a persistent segment tree, whose version k holds the positions of the k
+ * highest boundaries, to count the boundaries above t before an instance, which
+ * is its group, in O(log n).</li>
+ * </ul>
+ * Groups are numbered from 0 in dendrogram order, as in
+ * {@link HACluster#buildGroupsCutAt(double)}.
+ *
+ * A cut splits every merge above the threshold, even below a merge that is not,
+ * so the index does not need the heights to grow towards the root. They do not
+ * with similarities such as {@link CosineSimilarityDistance}, or with centroid
+ * and median linkage: there, a group is not always a subtree, but it is still a
+ * run of consecutive instances, and the index gives the same groups as a walk
+ * of the hierarchy.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class CutIndex {
+
+	private HATreeNode[] leaves;
+	private int[] positions;
+	private double[] boundaries;
+	private double[] sortedBoundaries;
+
+	/* Persistent segment tree over the boundary positions; node 0 is the empty tree */
+	private int[] roots;
+	private int[] lefts;
+	private int[] rights;
+	private int[] counts;
+	private int nodes;
+
+	/**
+	 * Builds the index of a hierarchy, in O(n log n)
+	 *
+	 * @param cluster the clustering
+	 */
+	CutIndex(HACluster cluster) {
+		collect(cluster);
+		int m = boundaries.length;
+
+		sortedBoundaries = boundaries.clone();
+		Arrays.sort(sortedBoundaries);
+
+		/* Boundary positions from the lowest to the highest boundary */
+		int[] order = new int[m];
+		int[] ties = new int[m];
+		for (int k = 0; k < m; k++) {
+			int rank = lowerBound(sortedBoundaries, boundaries[k]);
+			order[rank + ties[rank]++] = k;
+		}
+
+		int depth = 1;
+		while ((1 << (depth - 1)) < Math.max(m, 1)) {
+			depth++;
+		}
+		lefts = new int[m * depth + 1];
+		rights = new int[m * depth + 1];
+		counts = new int[m * depth + 1];
+		nodes = 1;
+		roots = new int[m + 1];
+		for (int v = 1; v <= m; v++) {
+			roots[v] = insert(roots[v - 1], 0, m, order[m - v]);
+		}
+	}
+
+	/**
+	 * Lists the leaves in dendrogram order, and the normalized height of the
+	 * lowest common ancestor of each two consecutive leaves
+	 */
+	private void collect(HACluster cluster) {
+		LinkageMatrix linkage = cluster.getLinkageMatrix();
+		int root = linkage.getRoot();
+		int n = root < 0 ? 0 : linkage.getSize(root);
+		leaves = new HATreeNode[n];
+		boundaries = new double[Math.max(n - 1, 0)];
+		positions = new int[linkage.getNodeCount()];
+		Arrays.fill(positions, -1);
+		if (n == 0) {
+			return;
+		}
+		double rootDistance = linkage.getMaxDistance(root);
+
+		/* In-order traversal: each merge comes between two leaves */
+		int[] stack = new int[n];
+		int top = 0, count = 0;
+		int node = root;
+		while (node >= 0 || top > 0) {
+			while (node >= 0 && !linkage.isLeaf(node)) {
+				stack[top++] = node;
+				node = linkage.getLeft(node);
+			}
+			if (node < 0) {
+				node = stack[--top];
+				double height = linkage.getMaxDistance(node) / rootDistance;
+				/* Undefined heights, from a zero root distance, never split */
+				boundaries[count - 1] = Double.isNaN(height) ? Double.NEGATIVE_INFINITY : height;
+				node = linkage.getRight(node);
+			} else {
+				positions[node] = count;
+				leaves[count++] = cluster.getInstance(node);
+				node = -1;
+			}
+		}
+	}
+
+	/**
+	 * @return a new version of the tree rooted at node, with one more boundary at position
+	 */
+	private int insert(int node, int from, int to, int position) {
+		int copy = nodes++;
+		lefts[copy] = lefts[node];
+		rights[copy] = rights[node];
+		counts[copy] = counts[node] + 1;
+		if (to - from > 1) {
+			int middle = (from + to) >>> 1;
+			if (position < middle) {
+				lefts[copy] = insert(lefts[node], from, middle, position);
+			} else {
+				rights[copy] = insert(rights[node], middle, to, position);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * @return the number of boundaries before position end in the tree rooted at node
+	 */
+	private int countBefore(int node, int end) {
+		int from = 0, to = boundaries.length, count = 0;
+		while (node != 0 && end > from) {
+			if (end >= to) {
+				return count + counts[node];
+			}
+			int middle = (from + to) >>> 1;
+			if (end > middle) {
+				count += counts[lefts[node]];
+				node = rights[node];
+				from = middle;
+			} else {
+				node = lefts[node];
+				to = middle;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the first index of a sorted array whose value is not less than the key
+	 */
+	private static int lowerBound(double[] sorted, double key) {
+		int from = 0, to = sorted.length;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (Double.compare(sorted[middle], key) < 0) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * @param threshold a value in [0,1]
+	 * @return the number of boundaries above the threshold
+	 */
+	private int countAbove(double threshold) {
+		int from = 0, to = sortedBoundaries.length;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (sortedBoundaries[middle] > threshold) {
+				to = middle;
+			} else {
+				from = middle + 1;
+			}
+		}
+		return sortedBoundaries.length - from;
+	}
+
+	/**
+	 * @return the number of instances
+	 */
+	public int size() {
+		return leaves.length;
+	}
+
+	/**
+	 * @param position a position in dendrogram order
+	 * @return the instance at that position
+	 */
+	public HATreeNode getLeaf(int position) {
+		return leaves[position];
+	}
+
+	/**
+	 * @param id the id of an instance
+	 * @return its position in dendrogram order
+	 */
+	public int getPosition(int id) {
+		int position = id < positions.length ? positions[id] : -1;
+		if (position < 0) {
+			throw new IllegalArgumentException("Not an instance: " + id);
+		}
+		return position;
+	}
+
+	/**
+	 * Counts the groups of a cut, in O(log n)
+	 *
+	 * @param threshold a value in [0,1]
+	 * @return the number of groups
+	 */
+	public int getGroupCount(double threshold) {
+		return leaves.length == 0 ? 0 : countAbove(threshold) + 1;
+	}
+
+	/**
+	 * Assigns the instances to the groups of a cut, in O(n)
+	 *
+	 * @param threshold a value in [0,1]
+	 * @return the group of the instance at each position in dendrogram order
+	 */
+	public int[] getGroups(double threshold) {
+		int[] groups = new int[leaves.length];
+		int group = 0;
+		for (int p = 1; p < groups.length; p++) {
+			if (boundaries[p - 1] > threshold) {
+				group++;
+			}
+			groups[p] = group;
+		}
+		return groups;
+	}
+
+	/**
+	 * Finds the group of an instance in a cut, in O(log n)
+	 *
+	 * @param id the id of the instance
+	 * @param threshold a value in [0,1]
+	 * @return its group
+	 */
+	public int getGroup(int id, double threshold) {
+		return countBefore(roots[countAbove(threshold)], getPosition(id));
+	}
+}
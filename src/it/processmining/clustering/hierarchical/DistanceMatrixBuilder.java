@@ -0,0 +1,236 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the distances between every pair of instances. The upper triangle of
+ * the matrix is split in square tiles, small enough for the rows and columns of
+ * a tile to stay in cache, and the tiles are computed on a fork-join pool.
+ *
+ * Every distance is computed by the same call as in the serial loop, so the
+ * result does not depend on the parallelism level. {@link BatchDistance} metrics
+ * compute each row of a tile in a single call.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class DistanceMatrixBuilder {
+
+	/* The rows and columns of a tile should fit in a 256 KB cache */
+	private static final int CACHE_SIZE = 256 * 1024;
+	private static final int MIN_TILE_SIZE = 16;
+	private static final int MAX_TILE_SIZE = 256;
+
+	private HATreeNode[] instances;
+	private double[][] vectors;
+	private float[][] floatVectors;
+	private SparseVector[] sparseVectors;
+	private Distance dist;
+	private int parallelism;
+	private int tileSize;
+	private ProgressTracker tracker;
+
+	/**
+	 * @param instances the instances, indexed as in the matrix
+	 * @param dist the distance metric
+	 * @param length the number of dimensions of the instances
+	 * @param parallelism the number of worker threads; 1 computes on the calling thread
+	 */
+	DistanceMatrixBuilder(List<HATreeNode> instances, Distance dist, int length, int parallelism) {
+		this.instances = instances.toArray(new HATreeNode[instances.size()]);
+		this.dist = dist;
+		if (dist instanceof BatchDistance) {
+			gatherVectors();
+		}
+		this.parallelism = parallelism;
+		int bytes = floatVectors != null ? 4 : 8;
+		long tile = CACHE_SIZE / (2L * bytes * Math.max(length, 1));
+		this.tileSize = (int) Math.max(MIN_TILE_SIZE, Math.min(MAX_TILE_SIZE, tile));
+	}
+
+	/**
+	 * @param tracker a tracker checked for cancellation before every tile, or null
+	 */
+	void setTracker(ProgressTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	/**
+	 * @param storage where the distances are stored
+	 * @param precision the precision of the stored distances
+	 * @return the distance matrix
+	 */
+	CondensedDistanceMatrix build(HAClusterer.Storage storage, HAClusterer.Precision precision) {
+		int n = instances.length;
+		CondensedDistanceMatrix matrix = CondensedDistanceMatrix.create(n, storage, precision);
+		int blocks = (n + tileSize - 1) / tileSize;
+
+		if (parallelism <= 1 || blocks <= 1) {
+			for (int bi = 0; bi < blocks; bi++) {
+				for (int bj = bi; bj < blocks; bj++) {
+					computeTile(matrix, bi, bj);
+				}
+			}
+			return matrix;
+		}
+
+		int[] tiles = new int[blocks * (blocks + 1)];
+		int t = 0;
+		for (int bi = 0; bi < blocks; bi++) {
+			for (int bj = bi; bj < blocks; bj++) {
+				tiles[t++] = bi;
+				tiles[t++] = bj;
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new TileTask(matrix, tiles, 0, t / 2));
+		} finally {
+			pool.shutdown();
+		}
+		return matrix;
+	}
+
+	/**
+	 * Computes the distances between a point and every instance, with the
+	 * batch kernels if the point is stored as the instances are
+	 *
+	 * @param point the point
+	 * @param result receives the distance to instance k at result[k]
+	 */
+	void computeDistances(HATreeNode point, double[] result) {
+		int n = instances.length;
+		if (sparseVectors != null && point.getSparseData() != null) {
+			((BatchDistance) dist).computeDistances(point.getSparseData(), sparseVectors, 0, n, result);
+		} else if (floatVectors != null && point.getFloatData() != null) {
+			((BatchDistance) dist).computeDistances(point.getFloatData(), floatVectors, 0, n, result);
+		} else if (vectors != null && point.getSparseData() == null && point.getFloatData() == null) {
+			((BatchDistance) dist).computeDistances(point.getData(), vectors, 0, n, result);
+		} else {
+			for (int k = 0; k < n; k++) {
+				result[k] = dist.computeDistance(point, instances[k]);
+			}
+		}
+	}
+
+	/**
+	 * Collects the vectors of the instances for the batch kernels, if they are
+	 * all sparse, all in single precision or all dense
+	 */
+	private void gatherVectors() {
+		int sparse = 0, single = 0;
+		for (HATreeNode instance : instances) {
+			if (instance.getSparseData() != null) {
+				sparse++;
+			} else if (instance.getFloatData() != null) {
+				single++;
+			}
+		}
+		if (sparse == instances.length) {
+			sparseVectors = new SparseVector[instances.length];
+			for (int i = 0; i < instances.length; i++) {
+				sparseVectors[i] = instances[i].getSparseData();
+			}
+		} else if (single == instances.length) {
+			floatVectors = new float[instances.length][];
+			for (int i = 0; i < instances.length; i++) {
+				floatVectors[i] = instances[i].getFloatData();
+			}
+		} else if (sparse == 0 && single == 0) {
+			vectors = new double[instances.length][];
+			for (int i = 0; i < instances.length; i++) {
+				vectors[i] = instances[i].getData();
+			}
+		}
+	}
+
+	/**
+	 * Computes the distances of the pairs (i, j), i &lt; j, with i in row block bi
+	 * and j in column block bj
+	 *
+	 * @param matrix the matrix to fill
+	 * @param bi the row block
+	 * @param bj the column block, not smaller than bi
+	 */
+	private void computeTile(CondensedDistanceMatrix matrix, int bi, int bj) {
+		if (tracker != null) {
+			tracker.checkCancelled();
+		}
+		int n = instances.length;
+		int rowEnd = Math.min(n, (bi + 1) * tileSize);
+		int colEnd = Math.min(n, (bj + 1) * tileSize);
+		if (sparseVectors != null) {
+			BatchDistance batch = (BatchDistance) dist;
+			double[] row = new double[tileSize];
+			for (int i = bi * tileSize; i < rowEnd; i++) {
+				int colStart = Math.max(i + 1, bj * tileSize);
+				batch.computeDistances(sparseVectors[i], sparseVectors, colStart, colEnd, row);
+				for (int j = colStart; j < colEnd; j++) {
+					matrix.set(i, j, row[j - colStart]);
+				}
+			}
+			return;
+		}
+		if (floatVectors != null) {
+			BatchDistance batch = (BatchDistance) dist;
+			double[] row = new double[tileSize];
+			for (int i = bi * tileSize; i < rowEnd; i++) {
+				int colStart = Math.max(i + 1, bj * tileSize);
+				batch.computeDistances(floatVectors[i], floatVectors, colStart, colEnd, row);
+				for (int j = colStart; j < colEnd; j++) {
+					matrix.set(i, j, row[j - colStart]);
+				}
+			}
+			return;
+		}
+		if (vectors != null) {
+			BatchDistance batch = (BatchDistance) dist;
+			double[] row = new double[tileSize];
+			for (int i = bi * tileSize; i < rowEnd; i++) {
+				int colStart = Math.max(i + 1, bj * tileSize);
+				batch.computeDistances(vectors[i], vectors, colStart, colEnd, row);
+				for (int j = colStart; j < colEnd; j++) {
+					matrix.set(i, j, row[j - colStart]);
+				}
+			}
+			return;
+		}
+		for (int i = bi * tileSize; i < rowEnd; i++) {
+			HATreeNode n1 = instances[i];
+			for (int j = Math.max(i + 1, bj * tileSize); j < colEnd; j++) {
+				matrix.set(i, j, dist.computeDistance(n1, instances[j]));
+			}
+		}
+	}
+
+	/**
+	 * Computes a range of tiles, splitting it in halves until a single tile is left
+	 */
+	@SuppressWarnings("serial")
+	private class TileTask extends RecursiveAction {
+		private CondensedDistanceMatrix matrix;
+		private int[] tiles;
+		private int from;
+		private int to;
+
+		TileTask(CondensedDistanceMatrix matrix, int[] tiles, int from, int to) {
+			this.matrix = matrix;
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				computeTile(matrix, tiles[2 * from], tiles[2 * from + 1]);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new TileTask(matrix, tiles, from, middle), new TileTask(matrix, tiles, middle, to));
+			}
+		}
+	}
+}
@@ -6,20 +6,123 @@ package it.processmining.clustering.hierarchical;
  * @author Alessandro Bruni <alessandro.bruni@gmail.com>
  *
  */
-public class EuclideanDistance implements Distance {
+public class EuclideanDistance implements BatchDistance {
 	
 	private static EuclideanDistance instance = new EuclideanDistance();
 
 	public double computeDistance(HATreeNode n1, HATreeNode n2) {
-		double[] a1 = n1.getData();
-		double[] a2 = n2.getData();
-		double sum = 0;
+		if (n1.getSparseData() != null && n2.getSparseData() != null) {
+			return Math.sqrt(squaredDistance(n1.getSparseData(), n2.getSparseData()));
+		}
+		if (n1.getFloatData() != null && n2.getFloatData() != null) {
+			return Math.sqrt(squaredDistance(n1.getFloatData(), n2.getFloatData()));
+		}
+		return Math.sqrt(squaredDistance(n1.getData(), n2.getData()));
+	}
+
+	public void computeDistances(double[] a, double[][] others, int from, int to, double[] result) {
+		for (int k = from; k < to; k++) {
+			result[k - from] = Math.sqrt(squaredDistance(a, others[k]));
+		}
+	}
+
+	public void computeDistances(float[] a, float[][] others, int from, int to, double[] result) {
+		for (int k = from; k < to; k++) {
+			result[k - from] = Math.sqrt(squaredDistance(a, others[k]));
+		}
+	}
 
-		for (int i = 0; i < a1.length; i++) {
-			sum += (a1[i] - a2[i]) * (a1[i] - a2[i]);
+	public void computeDistances(SparseVector a, SparseVector[] others, int from, int to, double[] result) {
+		for (int k = from; k < to; k++) {
+			result[k - from] = Math.sqrt(squaredDistance(a, others[k]));
 		}
+	}
 
-		return Math.sqrt(sum);
+	/**
+	 * Sums the squared differences over four independent accumulators, so that
+	 * consecutive iterations do not wait on each other.
+	 * 
+	 * @param a1 the first point
+	 * @param a2 the second point
+	 * @return the squared Euclidean distance
+	 */
+	static double squaredDistance(double[] a1, double[] a2) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (int end = a1.length - 3; i < end; i += 4) {
+			double d0 = a1[i] - a2[i];
+			double d1 = a1[i + 1] - a2[i + 1];
+			double d2 = a1[i + 2] - a2[i + 2];
+			double d3 = a1[i + 3] - a2[i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		for (; i < a1.length; i++) {
+			double d = a1[i] - a2[i];
+			s0 += d * d;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	/**
+	 * Sums the squared differences of single precision points in double precision
+	 * 
+	 * @param a1 the first point
+	 * @param a2 the second point
+	 * @return the squared Euclidean distance
+	 */
+	static double squaredDistance(float[] a1, float[] a2) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (int end = a1.length - 3; i < end; i += 4) {
+			double d0 = (double) a1[i] - a2[i];
+			double d1 = (double) a1[i + 1] - a2[i + 1];
+			double d2 = (double) a1[i + 2] - a2[i + 2];
+			double d3 = (double) a1[i + 3] - a2[i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		for (; i < a1.length; i++) {
+			double d = (double) a1[i] - a2[i];
+			s0 += d * d;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	/**
+	 * Sums the squared differences over the union of the non-zero coordinates
+	 * 
+	 * @param a1 the first point
+	 * @param a2 the second point
+	 * @return the squared Euclidean distance
+	 */
+	static double squaredDistance(SparseVector a1, SparseVector a2) {
+		int[] i1 = a1.getIndices(), i2 = a2.getIndices();
+		double[] v1 = a1.getValues(), v2 = a2.getValues();
+		double sum = 0;
+		int i = 0, j = 0;
+		while (i < i1.length && j < i2.length) {
+			double d;
+			if (i1[i] == i2[j]) {
+				d = v1[i++] - v2[j++];
+			} else if (i1[i] < i2[j]) {
+				d = v1[i++];
+			} else {
+				d = v2[j++];
+			}
+			sum += d * d;
+		}
+		for (; i < i1.length; i++) {
+			sum += v1[i] * v1[i];
+		}
+		for (; j < i2.length; j++) {
+			sum += v2[j] * v2[j];
+		}
+		return sum;
 	}
 	
 	private EuclideanDistance() {}
@@ -1,109 +1,503 @@
 package it.processmining.clustering.hierarchical;
 
+import it.processmining.clustering.jfr.CutEvent;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Represents a hierarchical agglomerative cluster, with the distance matrix between
  * the tree nodes.
  * 
+ * The hierarchy is stored in a {@link LinkageMatrix}. The instances keep their
+ * nodes, while the internal nodes are exposed as lightweight {@link HATreeNode}
+ * views, created when first asked for.
+ * 
+ * Instances can be inserted or updated after clustering, without clustering
+ * everything again: the distances of the instance to the other ones are
+ * computed, and the instance is attached to the subtree it is closest to, so
+ * that only the ancestors of the new leaf are rebuilt. This is a local repair:
+ * the hierarchy can differ from the one a new clustering would build, so
+ * clustering from scratch now and then is still advised.
+ * 
  * @author Alessandro Bruni <alessandro.bruni@gmail.com>
  *
  */
 public class HACluster {
 
-	private HATreeNode rootNode;
-	private double[][] distanceMatrix;
-	private HashMap<Integer, HATreeNode> instances;
-	private int currentGroupId;
+	private LinkageMatrix linkageMatrix;
+	private CondensedDistanceMatrix distanceMatrix;
+	/* The instances and the views of the merges, by id */
+	private HATreeNode[] nodes;
+	private CutIndex cutIndex;
+	private Distance dist;
+	private Linkage linkage;
+	private int length;
+	/* The instances by position in the distance matrix, and the positions by id */
+	private HATreeNode[] leaves;
+	private int[] slots;
 	
 	/**
 	 * Builds a hierarchical cluster, only used by HAClusterer
 	 * 
-	 * @param rootNode
-	 * @param distanceMatrix
-	 * @param instances
+	 * @param linkageMatrix the hierarchy
+	 * @param distanceMatrix the distances between the instances
+	 * @param instances the instances, by position in the distance matrix
+	 * @param dist the distance metric of the clustering
+	 * @param linkage the linkage of the clustering, or null if it recomputed centroid distances
+	 * @param length the number of dimensions of the instances
 	 */
-	HACluster(HATreeNode rootNode, double[][] distanceMatrix, HashMap<Integer, HATreeNode> instances) {
-		this.rootNode = rootNode;
+	HACluster(LinkageMatrix linkageMatrix, CondensedDistanceMatrix distanceMatrix, List<HATreeNode> instances,
+			Distance dist, Linkage linkage, int length) {
+		this.linkageMatrix = linkageMatrix;
 		this.distanceMatrix = distanceMatrix;
-		this.instances = instances;
+		this.dist = dist;
+		this.linkage = linkage;
+		this.length = length;
+
+		int n = instances.size();
+		nodes = new HATreeNode[Math.max(linkageMatrix.getNodeCount(), 1)];
+		leaves = new HATreeNode[Math.max(n, 1)];
+		slots = new int[Math.max(linkageMatrix.getNodeCount(), 1)];
+		for (int slot = 0; slot < n; slot++) {
+			HATreeNode leaf = instances.get(slot);
+			nodes[leaf.getId()] = leaf;
+			leaves[slot] = leaf;
+			slots[leaf.getId()] = slot;
+		}
 	}
 	
 	/**
 	 * @return the root node of the hierarchy three
 	 */
 	public HATreeNode getRootNode() {
-		return rootNode;
+		return linkageMatrix.getRoot() < 0 ? null : getInstance(linkageMatrix.getRoot());
 	}
 
 	/**
-	 * Returns the normalized distance between node i and node j
+	 * @return the hierarchy, as parallel arrays indexed by node id
+	 */
+	public LinkageMatrix getLinkageMatrix() {
+		return linkageMatrix;
+	}
+
+	/**
+	 * @return the distances between the instances
+	 */
+	CondensedDistanceMatrix getDistanceMatrix() {
+		return distanceMatrix;
+	}
+
+	/**
+	 * @param slot a position in the distance matrix
+	 * @return the instance at that position
+	 */
+	HATreeNode getLeafAt(int slot) {
+		return leaves[slot];
+	}
+
+	/**
+	 * @return the distance metric of the clustering
+	 */
+	Distance getDistance() {
+		return dist;
+	}
+
+	/**
+	 * @return the linkage of the clustering, or null if it recomputed centroid distances
+	 */
+	Linkage getLinkage() {
+		return linkage;
+	}
+
+	/**
+	 * @return the number of dimensions of the instances
+	 */
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the normalized distance between instance i and instance j
 	 * 
-	 * @param i the index of the first node
-	 * @param j the index of the second node
+	 * @param i the id of the first instance
+	 * @param j the id of the second instance
 	 * @return
 	 */
 	public double getNormalizedDistance(int i, int j) {
-		return distanceMatrix[i][j] / rootNode.getMaxDistance();
+		return distanceMatrix.get(slots[i], slots[j]) / linkageMatrix.getMaxDistance(linkageMatrix.getRoot());
+	}
+	
+	/**
+	 * Compares the distances between the instances with the ones of another
+	 * clustering of the same instances, such as a {@link HAClusterer.Precision#SINGLE}
+	 * cluster against a {@link HAClusterer.Precision#DOUBLE} one. Single precision
+	 * clusters should deviate by less than
+	 * {@link HAClusterer#SINGLE_PRECISION_TOLERANCE}.
+	 * 
+	 * @param reference the other cluster
+	 * @return the largest difference between the distances of a pair in the two
+	 * clusters, divided by the largest distance in the reference
+	 */
+	public double getDistanceDeviation(HACluster reference) {
+		if (reference.distanceMatrix.size() != distanceMatrix.size()) {
+			throw new IllegalArgumentException("The clusters have different instances");
+		}
+		long length = CondensedDistanceMatrix.offset(distanceMatrix.size());
+		double maxDistance = 0, maxDeviation = 0;
+		for (long k = 0; k < length; k++) {
+			double d = reference.distanceMatrix.getAt(k);
+			maxDistance = Math.max(maxDistance, Math.abs(d));
+			maxDeviation = Math.max(maxDeviation, Math.abs(distanceMatrix.getAt(k) - d));
+		}
+		return maxDistance > 0 ? maxDeviation / maxDistance : maxDeviation;
 	}
 	
 	/**
 	 * Returns the node instance from its id
 	 * 
 	 * @param id the node id
-	 * @return the node
+	 * @return the node, or null if there is none with that id
 	 */
 	public HATreeNode getInstance(int id) {
-		return instances.get(id);
+		if (id < 0 || id >= linkageMatrix.getNodeCount() || linkageMatrix.getSize(id) == 0) {
+			return null;
+		}
+		if (id >= nodes.length) {
+			nodes = Arrays.copyOf(nodes, Math.max(2 * nodes.length, linkageMatrix.getNodeCount()));
+		}
+		if (nodes[id] == null) {
+			nodes[id] = new LinkageNode(this, linkageMatrix, id);
+		}
+		return nodes[id];
 	}
 	
 	/**
-	 * Builds a cluster of nodes from the hierarchy tree.
+	 * Inserts a new instance into the hierarchy. Costs O(n) distance
+	 * computations, plus the rebuilding of the ancestors of the new leaf.
+	 * Without a linkage, the centroids of the merges are computed again.
 	 * 
-	 * @param threshold a value in [0,1]. Every subtree whose distance is above the threshold is split,
-	 * while the rest is put together.
-	 * @return a map between group ids and sets of instance nodes, which represents the cluster
+	 * @param data the position of the instance
+	 * @param name the name of the instance
+	 * @return the new leaf
 	 */
-	public HashMap<Integer, Collection<HATreeNode>> buildGroupsCutAt(double threshold) {
-		HashMap<Integer, Collection<HATreeNode>> groupMap = new HashMap<Integer, Collection<HATreeNode>>();
-		currentGroupId = 0;
-		
-		buildGroupsCutAtRec(rootNode, groupMap, threshold);
-		
-		return groupMap;
+	public HATreeNode insertInstance(double[] data, String name) {
+		return insert(createLeaf(linkageMatrix.addLeaf(), name, data));
 	}
-	
+
 	/**
-	 * Recursive function that does the dirty job
+	 * Inserts a new sparse instance into the hierarchy
 	 * 
-	 * @param node
-	 * @param groupMap
-	 * @param threshold
-	 */
-	private void buildGroupsCutAtRec(HATreeNode node, HashMap<Integer, Collection<HATreeNode>> groupMap, double threshold) {
-		if (node.getMaxDistance() / rootNode.getMaxDistance() > threshold) {
-			/* Just go down, splitting the left child's groups from the right child's groups */
-			buildGroupsCutAtRec(node.getLeft(), groupMap, threshold);
-			currentGroupId++;
-			buildGroupsCutAtRec(node.getRight(), groupMap, threshold);
-		} else {
-			if (!node.isLeaf()) {
-				/* Don't separate the subtrees, since we are underneath the threshold */
-				buildGroupsCutAtRec(node.getLeft(), groupMap, threshold);
-				buildGroupsCutAtRec(node.getRight(), groupMap, threshold);
+	 * @param data the position of the instance
+	 * @param name the name of the instance
+	 * @return the new leaf
+	 * @see #insertInstance(double[], String)
+	 */
+	public HATreeNode insertInstance(SparseVector data, String name) {
+		return insert(new HATreeNode(linkageMatrix.addLeaf(), name, data));
+	}
+
+	/**
+	 * Moves an instance to a new position: its leaf is detached from the
+	 * hierarchy, and inserted again as a new instance would be. The ancestors it
+	 * leaves keep their merge distances, as only a new clustering can tell how
+	 * they would shrink.
+	 * 
+	 * @param id the id of the instance
+	 * @param data the new position of the instance
+	 * @return the new leaf, with the same id and name
+	 */
+	public HATreeNode updateInstance(int id, double[] data) {
+		HATreeNode old = getLeaf(id);
+		return update(createLeaf(id, old.getName(), data));
+	}
+
+	/**
+	 * Moves a sparse instance to a new position
+	 * 
+	 * @param id the id of the instance
+	 * @param data the new position of the instance
+	 * @return the new leaf, with the same id and name
+	 * @see #updateInstance(int, double[])
+	 */
+	public HATreeNode updateInstance(int id, SparseVector data) {
+		HATreeNode old = getLeaf(id);
+		return update(new HATreeNode(id, old.getName(), data));
+	}
+
+	/**
+	 * Builds a dense leaf, in single precision if the other instances are
+	 */
+	private HATreeNode createLeaf(int id, String name, double[] data) {
+		if (distanceMatrix.size() > 0 && leaves[0].getFloatData() != null) {
+			float[] single = new float[data.length];
+			for (int i = 0; i < data.length; i++) {
+				single[i] = (float) data[i];
+			}
+			return new HATreeNode(id, name, single);
+		}
+		return new HATreeNode(id, name, data);
+	}
+
+	private HATreeNode getLeaf(int id) {
+		HATreeNode node = getInstance(id);
+		if (node == null || !node.isLeaf()) {
+			throw new IllegalArgumentException("Not an instance: " + id);
+		}
+		return node;
+	}
+
+	/**
+	 * Appends a leaf to the distance matrix and to the hierarchy
+	 */
+	private HATreeNode insert(HATreeNode leaf) {
+		int id = leaf.getId();
+		int slot = distanceMatrix.size();
+		distanceMatrix.grow(slot + 1);
+		if (slot >= leaves.length) {
+			leaves = Arrays.copyOf(leaves, 2 * leaves.length);
+		}
+		if (id >= slots.length) {
+			slots = Arrays.copyOf(slots, Math.max(2 * slots.length, id + 1));
+		}
+		if (id >= nodes.length) {
+			nodes = Arrays.copyOf(nodes, Math.max(2 * nodes.length, id + 1));
+		}
+		leaves[slot] = leaf;
+		slots[id] = slot;
+		nodes[id] = leaf;
+		distanceMatrix.setInstance(slot, leaf);
+		attach(id, slot);
+		return leaf;
+	}
+
+	/**
+	 * Replaces a leaf with one in the same slot of the distance matrix
+	 */
+	private HATreeNode update(HATreeNode leaf) {
+		int id = leaf.getId();
+		detach(id);
+		leaves[slots[id]] = leaf;
+		nodes[id] = leaf;
+		distanceMatrix.setInstance(slots[id], leaf);
+		attach(id, slots[id]);
+		return leaf;
+	}
+
+	/**
+	 * Computes the distances of a leaf, and attaches it to the hierarchy. The
+	 * leaf descends from the root towards the closer child, and stops at the
+	 * first subtree whose children are closer to each other than the leaf is to
+	 * the subtree. For reducible linkages the new merge is then not higher than
+	 * the one above it.
+	 * 
+	 * @param id the id of a leaf that is not in the hierarchy
+	 * @param slot its position in the distance matrix
+	 */
+	private void attach(int id, int slot) {
+		cutIndex = null;
+		HATreeNode leaf = nodes[id];
+		for (int k = 0; k < distanceMatrix.size(); k++) {
+			if (k != slot) {
+				distanceMatrix.set(k, slot, dist.computeDistance(leaf, leaves[k]));
+			}
+		}
+		int root = linkageMatrix.getRoot();
+		if (root < 0) {
+			linkageMatrix.setRoot(id);
+			return;
+		}
+
+		/* Distances from the leaf to every subtree, in the space of the linkage */
+		int count = linkageMatrix.getNodeCount();
+		double[] distances = new double[count];
+		HATreeNode[] centroids = linkage == null ? new HATreeNode[count] : null;
+		for (int node : postOrder(root)) {
+			double d;
+			if (linkageMatrix.isLeaf(node)) {
+				d = distanceMatrix.get(slots[node], slot);
+				if (linkage != null && linkage.isSquared()) {
+					d *= d;
+				} else if (linkage == null) {
+					centroids[node] = nodes[node];
+				}
 			} else {
-				/* We just encountered a leaf, so we add it to the current group */
-				Collection<HATreeNode> nodes; 
-				if (groupMap.containsKey(currentGroupId)) {
-					nodes = groupMap.get(currentGroupId);
+				int left = linkageMatrix.getLeft(node), right = linkageMatrix.getRight(node);
+				if (linkage != null) {
+					d = linkage.update(distances[left], distances[right], height(node),
+							linkageMatrix.getSize(left), linkageMatrix.getSize(right), 1);
 				} else {
-					nodes = new ArrayList<HATreeNode>();
-					groupMap.put(currentGroupId, nodes);
+					centroids[node] = LinkageEngine.createCentroid(node, centroids[left], centroids[right], length);
+					d = dist.computeDistance(leaf, centroids[node]);
+				}
+			}
+			distances[node] = d;
+		}
+
+		int[] path = new int[count];
+		int depth = 0;
+		int node = root;
+		while (!linkageMatrix.isLeaf(node) && distances[node] < height(node)) {
+			path[depth++] = node;
+			int left = linkageMatrix.getLeft(node), right = linkageMatrix.getRight(node);
+			node = distances[left] <= distances[right] ? left : right;
+		}
+
+		/* The new merge, then every ancestor rewritten over its new child */
+		int merged;
+		HATreeNode centroid = null;
+		if (linkage != null) {
+			merged = linkageMatrix.merge(node, id, toHeight(distances[node]));
+		} else {
+			merged = linkageMatrix.merge(node, id, distances[node]);
+			centroid = LinkageEngine.createCentroid(merged, centroids[node], leaf, length);
+		}
+		for (int k = depth - 1; k >= 0; k--) {
+			int ancestor = path[k];
+			int child = k + 1 < depth ? path[k + 1] : node;
+			boolean onLeft = linkageMatrix.getLeft(ancestor) == child;
+			int sibling = onLeft ? linkageMatrix.getRight(ancestor) : linkageMatrix.getLeft(ancestor);
+			double height;
+			if (linkage != null) {
+				/* Path nodes above the new merge already count the leaf */
+				int childSize = linkageMatrix.getSize(merged) - 1;
+				double d = linkage.update(height(ancestor), distances[sibling], distances[child],
+						childSize, 1, linkageMatrix.getSize(sibling));
+				if (linkage.isReducible()) {
+					/* The repaired order of the merges may differ, but heights stay monotonic */
+					d = Math.max(d, Math.max(height(merged), height(sibling)));
 				}
-				nodes.add(node);
+				height = toHeight(d);
+			} else {
+				height = dist.computeDistance(onLeft ? centroid : centroids[sibling], onLeft ? centroids[sibling] : centroid);
+				centroid = LinkageEngine.createCentroid(ancestor, onLeft ? centroid : centroids[sibling],
+						onLeft ? centroids[sibling] : centroid, length);
+			}
+			if (onLeft) {
+				linkageMatrix.set(ancestor, merged, sibling, height);
+			} else {
+				linkageMatrix.set(ancestor, sibling, merged, height);
+			}
+			merged = ancestor;
+		}
+		linkageMatrix.setRoot(merged);
+	}
+
+	/**
+	 * Removes a leaf from the hierarchy: its parent is replaced by its sibling,
+	 * and the ancestors above keep their merge distances
+	 * 
+	 * @param id the id of the leaf
+	 */
+	private void detach(int id) {
+		cutIndex = null;
+		int parent = linkageMatrix.getParent(id);
+		if (parent < 0) {
+			linkageMatrix.setRoot(-1);
+			return;
+		}
+		int sibling = linkageMatrix.getLeft(parent) == id ? linkageMatrix.getRight(parent) : linkageMatrix.getLeft(parent);
+		int ancestor = linkageMatrix.getParent(parent);
+		linkageMatrix.remove(parent);
+		if (parent < nodes.length) {
+			nodes[parent] = null;
+		}
+		if (ancestor < 0) {
+			linkageMatrix.setRoot(sibling);
+			return;
+		}
+
+		int child = parent;
+		int merged = sibling;
+		while (ancestor >= 0) {
+			if (linkageMatrix.getLeft(ancestor) == child) {
+				linkageMatrix.set(ancestor, merged, linkageMatrix.getRight(ancestor), linkageMatrix.getHeight(ancestor));
+			} else {
+				linkageMatrix.set(ancestor, linkageMatrix.getLeft(ancestor), merged, linkageMatrix.getHeight(ancestor));
+			}
+			child = ancestor;
+			merged = ancestor;
+			ancestor = linkageMatrix.getParent(ancestor);
+		}
+	}
+
+	/**
+	 * @return the merge distance of a node, in the space of the linkage
+	 */
+	private double height(int node) {
+		double d = linkageMatrix.getHeight(node);
+		return linkage != null && linkage.isSquared() ? d * d : d;
+	}
+
+	/**
+	 * @return the merge distance of a distance in the space of the linkage
+	 */
+	private double toHeight(double distance) {
+		return linkage != null && linkage.isSquared() ? Math.sqrt(Math.max(distance, 0)) : distance;
+	}
+
+	/**
+	 * @return the ids of the nodes of a tree, every node after its children
+	 */
+	private int[] postOrder(int root) {
+		int[] order = new int[linkageMatrix.getSize(root) * 2 - 1];
+		int[] stack = new int[order.length];
+		int top = 0, count = order.length;
+		stack[top++] = root;
+		/* Filled from the end: every node before its children, right subtree first */
+		while (top > 0) {
+			int node = stack[--top];
+			order[--count] = node;
+			if (!linkageMatrix.isLeaf(node)) {
+				stack[top++] = linkageMatrix.getLeft(node);
+				stack[top++] = linkageMatrix.getRight(node);
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Returns the index answering threshold cuts of the hierarchy. It is built on
+	 * the first call, in O(n log n), and again after instances are inserted or
+	 * updated.
+	 * 
+	 * @return the cut index
+	 */
+	public CutIndex getCutIndex() {
+		if (cutIndex == null) {
+			cutIndex = new CutIndex(this);
+		}
+		return cutIndex;
+	}
+
+	/**
+	 * Builds a cluster of nodes from the hierarchy tree.
+	 * 
+	 * @param threshold a value in [0,1]. Every subtree whose distance is above the threshold is split,
+	 * while the rest is put together. Subtrees are split even under a subtree that is not, when the
+	 * distances do not grow towards the root.
+	 * @return a map between group ids and sets of instance nodes, which represents the cluster
+	 * @see #getCutIndex()
+	 */
+	public HashMap<Integer, Collection<HATreeNode>> buildGroupsCutAt(double threshold) {
+		CutEvent event = new CutEvent();
+		event.start();
+		boolean indexBuilt = cutIndex == null;
+		CutIndex index = getCutIndex();
+		int[] groups = index.getGroups(threshold);
+		HashMap<Integer, Collection<HATreeNode>> groupMap = new HashMap<Integer, Collection<HATreeNode>>();
+		Collection<HATreeNode> nodes = null;
+		for (int p = 0; p < groups.length; p++) {
+			if (p == 0 || groups[p] != groups[p - 1]) {
+				nodes = new ArrayList<HATreeNode>();
+				groupMap.put(groups[p], nodes);
 			}
+			nodes.add(index.getLeaf(p));
 		}
+		event.finish(groups.length, threshold, groupMap.size(), indexBuilt);
+		return groupMap;
 	}
 }
@@ -0,0 +1,547 @@
+package it.processmining.clustering.hierarchical;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary persistence of a {@link HACluster}, so that a clustering can be
+ * reopened or moved to another machine without running
+ * {@link HAClusterer#cluster()} again.
+ *
+ * The format is versioned and big-endian. It is written as a stream, and read
+ * by mapping the file: the hierarchy and the instances are copied out of the
+ * mapping, while the distances stay in the file, page in on demand and are
+ * never parsed. The layout is:
+ * <ul>
+ * <li>the magic number "HACL" and the version;</li>
+ * <li>how the distances are stored, the number of dimensions, of node ids and
+ * of instances, the root, and the class names of the distance and of the
+ * linkage, which are created through their static <code>create()</code>;</li>
+ * <li>the linkage matrix, as one array per field;</li>
+ * <li>the instances, by position in the distance matrix: id, name and data;</li>
+ * <li>the condensed distance matrix, aligned to 8 bytes, unless the distances
+ * are computed on demand, as in sampled clusterings.</li>
+ * </ul>
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class HAClusterIO {
+
+	/** "HACL" */
+	public static final int MAGIC = 0x4841434C;
+	public static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* Kinds of distance matrices */
+	private static final byte DOUBLE_DISTANCES = 0;
+	private static final byte FLOAT_DISTANCES = 1;
+	private static final byte COMPUTED_DISTANCES = 2;
+
+	/* Kinds of instance data */
+	private static final byte NO_DATA = 0;
+	private static final byte DOUBLE_DATA = 1;
+	private static final byte FLOAT_DATA = 2;
+	private static final byte SPARSE_DATA = 3;
+
+	/* The reader maps at most 1 GB at a time */
+	private static final int WINDOW = 1 << 30;
+
+	private HAClusterIO() {
+	}
+
+	/**
+	 * Writes a cluster to a file. The cluster is written to a temporary file in
+	 * the same directory, which then replaces the file, so a cluster read from
+	 * the file, whose distances are still mapped from it, can be saved back to
+	 * it. If the writing fails, the file is left as it was.
+	 *
+	 * @param cluster the cluster
+	 * @param file the file, which is overwritten
+	 * @throws IOException if the file cannot be written or replaced
+	 */
+	public static void write(HACluster cluster, File file) throws IOException {
+		File temporary = File.createTempFile("." + file.getName() + ".", ".tmp", file.getAbsoluteFile()
+				.getParentFile());
+		boolean replaced = false;
+		try {
+			OutputStream out = new FileOutputStream(temporary);
+			try {
+				write(cluster, out);
+			} finally {
+				out.close();
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			replaced = true;
+		} finally {
+			if (!replaced) {
+				temporary.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes a cluster to a stream, which is flushed but not closed
+	 *
+	 * @param cluster the cluster
+	 * @param stream the stream
+	 * @throws IOException if the stream cannot be written
+	 */
+	public static void write(HACluster cluster, OutputStream stream) throws IOException {
+		LinkageMatrix linkageMatrix = cluster.getLinkageMatrix();
+		CondensedDistanceMatrix distanceMatrix = cluster.getDistanceMatrix();
+		byte distances = distanceMatrix instanceof OnDemandDistanceMatrix ? COMPUTED_DISTANCES
+				: distanceMatrix.getPrecision() == HAClusterer.Precision.SINGLE ? FLOAT_DISTANCES : DOUBLE_DISTANCES;
+		int nodeCount = linkageMatrix.getNodeCount();
+		int n = distanceMatrix.size();
+		Output out = new Output(stream);
+
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.put(distances);
+		out.putInt(cluster.getLength());
+		out.putInt(nodeCount);
+		out.putInt(n);
+		out.putInt(linkageMatrix.getRoot());
+		out.putString(cluster.getDistance().getClass().getName());
+		out.putString(cluster.getLinkage() == null ? null : cluster.getLinkage().getClass().getName());
+
+		for (int id = 0; id < nodeCount; id++) {
+			out.putInt(linkageMatrix.getLeft(id));
+		}
+		for (int id = 0; id < nodeCount; id++) {
+			out.putInt(linkageMatrix.getRight(id));
+		}
+		for (int id = 0; id < nodeCount; id++) {
+			out.putInt(linkageMatrix.getParent(id));
+		}
+		for (int id = 0; id < nodeCount; id++) {
+			out.putInt(linkageMatrix.getSize(id));
+		}
+		for (int id = 0; id < nodeCount; id++) {
+			out.putDouble(linkageMatrix.getHeight(id));
+		}
+		for (int id = 0; id < nodeCount; id++) {
+			out.putDouble(linkageMatrix.getMaxDistance(id));
+		}
+
+		for (int slot = 0; slot < n; slot++) {
+			HATreeNode leaf = cluster.getLeafAt(slot);
+			out.putInt(leaf.getId());
+			out.putString(leaf.getName());
+			if (leaf.getSparseData() != null) {
+				SparseVector data = leaf.getSparseData();
+				out.put(SPARSE_DATA);
+				out.putInt(data.getLength());
+				out.putInt(data.getNonZeros());
+				for (int index : data.getIndices()) {
+					out.putInt(index);
+				}
+				for (double value : data.getValues()) {
+					out.putDouble(value);
+				}
+			} else if (leaf.getFloatData() != null) {
+				float[] data = leaf.getFloatData();
+				out.put(FLOAT_DATA);
+				out.putInt(data.length);
+				for (float value : data) {
+					out.putFloat(value);
+				}
+			} else if (leaf.getData() != null) {
+				double[] data = leaf.getData();
+				out.put(DOUBLE_DATA);
+				out.putInt(data.length);
+				for (double value : data) {
+					out.putDouble(value);
+				}
+			} else {
+				out.put(NO_DATA);
+			}
+		}
+
+		out.align(8);
+		long length = distances == COMPUTED_DISTANCES ? 0 : CondensedDistanceMatrix.offset(n);
+		for (long k = 0; k < length; k++) {
+			if (distances == FLOAT_DISTANCES) {
+				out.putFloat((float) distanceMatrix.getAt(k));
+			} else {
+				out.putDouble(distanceMatrix.getAt(k));
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads a cluster from a file. The distances stay mapped from the file,
+	 * read-only: the first change to the cluster copies them to a temporary file.
+	 * The file must not be modified in place while the cluster is in use;
+	 * {@link #write(HACluster, File)} replaces it instead, which is safe.
+	 *
+	 * @param file the file
+	 * @return the cluster
+	 * @throws IOException if the file cannot be read, or is not a cluster
+	 */
+	public static HACluster read(File file) throws IOException {
+		return read(file, HAClusterer.Storage.MAPPED);
+	}
+
+	/**
+	 * Reads a cluster from a file
+	 *
+	 * @param file the file
+	 * @param storage where the distances are stored: {@link HAClusterer.Storage#MAPPED}
+	 * maps them from the file, which must then not be modified in place while the
+	 * cluster is in use, {@link HAClusterer.Storage#HEAP} copies them to the heap
+	 * @return the cluster
+	 * @throws IOException if the file cannot be read, or is not a cluster
+	 */
+	public static HACluster read(File file, HAClusterer.Storage storage) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return read(new Input(raf.getChannel()), storage);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated cluster file: " + file, e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static HACluster read(Input in, HAClusterer.Storage storage) throws IOException {
+		if (in.getInt() != MAGIC) {
+			throw new IOException("Not a cluster file");
+		}
+		int version = in.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported cluster file version: " + version);
+		}
+		byte distances = in.get();
+		if (distances != DOUBLE_DISTANCES && distances != FLOAT_DISTANCES && distances != COMPUTED_DISTANCES) {
+			throw new IOException("Unknown distance matrix: " + distances);
+		}
+		boolean single = distances == FLOAT_DISTANCES;
+		int length = in.getInt();
+		int nodeCount = in.getInt();
+		int n = in.getInt();
+		int root = in.getInt();
+		if (length < 0 || n < 0 || nodeCount < n || (n == 0 ? root != -1 : root < 0 || root >= nodeCount)) {
+			throw new IOException("Corrupt cluster file");
+		}
+		Distance dist = (Distance) create(in.getString(), Distance.class);
+		String linkageName = in.getString();
+		Linkage linkage = linkageName == null ? null : (Linkage) create(linkageName, Linkage.class);
+
+		int capacity = Math.max(nodeCount, 1);
+		int[] lefts = new int[capacity];
+		int[] rights = new int[capacity];
+		int[] parents = new int[capacity];
+		int[] sizes = new int[capacity];
+		double[] heights = new double[capacity];
+		double[] maxDistances = new double[capacity];
+		in.getInts(lefts, nodeCount);
+		in.getInts(rights, nodeCount);
+		in.getInts(parents, nodeCount);
+		in.getInts(sizes, nodeCount);
+		in.getDoubles(heights, nodeCount);
+		in.getDoubles(maxDistances, nodeCount);
+		if (!isHierarchy(lefts, rights, parents, sizes, nodeCount, n, root)) {
+			throw new IOException("Corrupt cluster file");
+		}
+		LinkageMatrix linkageMatrix = new LinkageMatrix(lefts, rights, parents, sizes, heights, maxDistances,
+				nodeCount, root);
+
+		List<HATreeNode> instances = new ArrayList<HATreeNode>(n);
+		for (int slot = 0; slot < n; slot++) {
+			int id = in.getInt();
+			if (id < 0 || id >= nodeCount || !linkageMatrix.isLeaf(id)) {
+				throw new IOException("Invalid instance id: " + id);
+			}
+			String name = in.getString();
+			byte kind = in.get();
+			if (kind == SPARSE_DATA) {
+				int dimensions = in.getInt();
+				int nonZeros = in.getInt();
+				int[] indices = new int[nonZeros];
+				double[] values = new double[nonZeros];
+				in.getInts(indices, nonZeros);
+				in.getDoubles(values, nonZeros);
+				instances.add(new HATreeNode(id, name, new SparseVector(dimensions, indices, values)));
+			} else if (kind == FLOAT_DATA) {
+				float[] data = new float[in.getInt()];
+				in.getFloats(data, data.length);
+				instances.add(new HATreeNode(id, name, data));
+			} else if (kind == DOUBLE_DATA) {
+				double[] data = new double[in.getInt()];
+				in.getDoubles(data, data.length);
+				instances.add(new HATreeNode(id, name, data));
+			} else if (kind == NO_DATA) {
+				instances.add(new HATreeNode(id, name, (double[]) null));
+			} else {
+				throw new IOException("Unknown instance data: " + kind);
+			}
+		}
+
+		in.align(8);
+		if (distances == COMPUTED_DISTANCES) {
+			return new HACluster(linkageMatrix, new OnDemandDistanceMatrix(instances, dist), instances, dist, linkage,
+					length);
+		}
+		CondensedDistanceMatrix distanceMatrix;
+		long values = CondensedDistanceMatrix.offset(n);
+		if (in.position() + values * (single ? 4 : 8) > in.size()) {
+			throw new IOException("Truncated cluster file");
+		}
+		if (storage == HAClusterer.Storage.MAPPED) {
+			distanceMatrix = new MappedDistanceMatrix(n, single, in.channel, in.position());
+		} else if (values > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many instances for an on-heap distance matrix: " + n);
+		} else if (single) {
+			float[] data = new float[(int) values];
+			in.getFloats(data, data.length);
+			distanceMatrix = new HeapFloatDistanceMatrix(n, data);
+		} else {
+			double[] data = new double[(int) values];
+			in.getDoubles(data, data.length);
+			distanceMatrix = new HeapDistanceMatrix(n, data);
+		}
+		return new HACluster(linkageMatrix, distanceMatrix, instances, dist, linkage, length);
+	}
+
+	/**
+	 * Checks that the arrays read from a file form a hierarchy: the children and
+	 * the parents are node ids or -1 and point at each other, the leaves have
+	 * size 1, each merge has the size of its children together, the removed
+	 * merges have size 0 and are detached, and the root holds the n instances.
+	 * As the sizes grow from each node to its parent, there are no cycles.
+	 */
+	private static boolean isHierarchy(int[] lefts, int[] rights, int[] parents, int[] sizes, int nodeCount, int n,
+			int root) {
+		for (int id = 0; id < nodeCount; id++) {
+			int left = lefts[id], right = rights[id], parent = parents[id];
+			if (left < -1 || left >= nodeCount || right < -1 || right >= nodeCount || parent < -1
+					|| parent >= nodeCount) {
+				return false;
+			}
+			if (left == -1 || right == -1) {
+				if (left != right || sizes[id] > 1 || sizes[id] < 0 || (sizes[id] == 0 && parent != -1)) {
+					return false;
+				}
+			} else if (left == right || parents[left] != id || parents[right] != id || sizes[left] < 1
+					|| sizes[right] < 1 || sizes[id] != (long) sizes[left] + sizes[right]) {
+				return false;
+			}
+			if (parent != -1 && lefts[parent] != id && rights[parent] != id) {
+				return false;
+			}
+		}
+		return n == 0 || (parents[root] == -1 && sizes[root] == n);
+	}
+
+	/**
+	 * Creates a distance or a linkage from its class name, through its static
+	 * create() method. The class is checked before it is initialized, so that a
+	 * file cannot run the static code of an arbitrary class.
+	 */
+	private static Object create(String className, Class<?> type) throws IOException {
+		try {
+			Class<?> cls = Class.forName(className, false, HAClusterIO.class.getClassLoader());
+			if (!type.isAssignableFrom(cls)) {
+				throw new IOException("Not a " + type.getSimpleName() + ": " + className);
+			}
+			Object instance = cls.getMethod("create").invoke(null);
+			if (!type.isInstance(instance)) {
+				throw new IOException("Not a " + type.getSimpleName() + ": " + className);
+			}
+			return instance;
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Cannot create " + className, e);
+		}
+	}
+
+	/**
+	 * Buffered big-endian writer that counts the written bytes
+	 */
+	private static class Output {
+
+		private OutputStream stream;
+		private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		private long position;
+
+		Output(OutputStream stream) {
+			this.stream = stream;
+		}
+
+		private void reserve(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				stream.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+			position += bytes;
+		}
+
+		void put(byte value) throws IOException {
+			reserve(1);
+			buffer.put(value);
+		}
+
+		void putInt(int value) throws IOException {
+			reserve(4);
+			buffer.putInt(value);
+		}
+
+		void putFloat(float value) throws IOException {
+			reserve(4);
+			buffer.putFloat(value);
+		}
+
+		void putDouble(double value) throws IOException {
+			reserve(8);
+			buffer.putDouble(value);
+		}
+
+		/**
+		 * Writes a string as its UTF-8 length, -1 for null, and bytes
+		 */
+		void putString(String value) throws IOException {
+			if (value == null) {
+				putInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(UTF8);
+			putInt(bytes.length);
+			for (byte b : bytes) {
+				put(b);
+			}
+		}
+
+		void align(int bytes) throws IOException {
+			while (position % bytes != 0) {
+				put((byte) 0);
+			}
+		}
+
+		void flush() throws IOException {
+			stream.write(buffer.array(), 0, buffer.position());
+			buffer.clear();
+			stream.flush();
+		}
+	}
+
+	/**
+	 * Big-endian reader over a file, which maps a window of it at a time
+	 */
+	private static class Input {
+
+		private FileChannel channel;
+		private long size;
+		private MappedByteBuffer window;
+		private long start;
+
+		Input(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			map(0);
+		}
+
+		private void map(long from) throws IOException {
+			window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW, size - from));
+			start = from;
+		}
+
+		long position() {
+			return start + window.position();
+		}
+
+		long size() {
+			return size;
+		}
+
+		/**
+		 * Moves the window so that it holds the next bytes, if it does not yet
+		 */
+		private void require(int bytes) throws IOException {
+			if (window.remaining() < bytes && position() < size) {
+				map(position());
+			}
+		}
+
+		byte get() throws IOException {
+			require(1);
+			return window.get();
+		}
+
+		int getInt() throws IOException {
+			require(4);
+			return window.getInt();
+		}
+
+		void getInts(int[] values, int count) throws IOException {
+			for (int k = 0; k < count;) {
+				require(4);
+				int length = Math.min(count - k, window.remaining() / 4);
+				if (length == 0) {
+					throw new BufferUnderflowException();
+				}
+				window.asIntBuffer().get(values, k, length);
+				window.position(window.position() + 4 * length);
+				k += length;
+			}
+		}
+
+		void getFloats(float[] values, int count) throws IOException {
+			for (int k = 0; k < count;) {
+				require(4);
+				int length = Math.min(count - k, window.remaining() / 4);
+				if (length == 0) {
+					throw new BufferUnderflowException();
+				}
+				window.asFloatBuffer().get(values, k, length);
+				window.position(window.position() + 4 * length);
+				k += length;
+			}
+		}
+
+		void getDoubles(double[] values, int count) throws IOException {
+			for (int k = 0; k < count;) {
+				require(8);
+				int length = Math.min(count - k, window.remaining() / 8);
+				if (length == 0) {
+					throw new BufferUnderflowException();
+				}
+				window.asDoubleBuffer().get(values, k, length);
+				window.position(window.position() + 8 * length);
+				k += length;
+			}
+		}
+
+		String getString() throws IOException {
+			int length = getInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			for (int k = 0; k < length; k++) {
+				bytes[k] = get();
+			}
+			return new String(bytes, UTF8);
+		}
+
+		void align(int bytes) throws IOException {
+			while (position() % bytes != 0) {
+				get();
+			}
+		}
+	}
+}
@@ -3,6 +3,8 @@ package it.processmining.clustering.hierarchical;
 /**
  * Represents a node of the hierarchical binary tree. When it is a leaf, it represents an
  * instance given to the clusterer, otherwise it represents the centroid of the two childs.
+ * The internal nodes of a {@link HACluster} are views of its {@link LinkageMatrix},
+ * without centroids.
  * 
  * @author Alessandro Bruni <alessandro.bruni@gmail.com>
  *
@@ -15,6 +17,8 @@ public class HATreeNode {
 	private double distance;
 	private double maxDistance;
 	private double[] data;
+	private SparseVector sparseData;
+	private float[] floatData;
 	private String name;
 	private int size;
 	
@@ -48,6 +52,47 @@ public class HATreeNode {
 		}
 	}
 	
+	/**
+	 * Builds a node without position nor children, for views whose fields are
+	 * stored elsewhere
+	 * 
+	 * @param id
+	 */
+	HATreeNode(int id) {
+		this.id = id;
+		this.name = "";
+	}
+	
+	/**
+	 * Builds a node whose position is a sparse vector
+	 * 
+	 * @param id
+	 * @param name
+	 * @param left
+	 * @param right
+	 * @param distance
+	 * @param data
+	 */
+	public HATreeNode(int id, String name, HATreeNode left, HATreeNode right, double distance, SparseVector data) {
+		this(id, name, left, right, distance, (double[]) null);
+		this.sparseData = data;
+	}
+	
+	/**
+	 * Builds a node whose position is stored in single precision
+	 * 
+	 * @param id
+	 * @param name
+	 * @param left
+	 * @param right
+	 * @param distance
+	 * @param data
+	 */
+	public HATreeNode(int id, String name, HATreeNode left, HATreeNode right, double distance, float[] data) {
+		this(id, name, left, right, distance, (double[]) null);
+		this.floatData = data;
+	}
+	
 	/**
 	 * Builds a leaf node
 	 * 
@@ -59,6 +104,28 @@ public class HATreeNode {
 		this(id, name, null, null, 0, data);
 	}
 
+	/**
+	 * Builds a sparse leaf node
+	 * 
+	 * @param id
+	 * @param name
+	 * @param data
+	 */
+	public HATreeNode(int id, String name, SparseVector data) {
+		this(id, name, null, null, 0, data);
+	}
+
+	/**
+	 * Builds a leaf node stored in single precision
+	 * 
+	 * @param id
+	 * @param name
+	 * @param data
+	 */
+	public HATreeNode(int id, String name, float[] data) {
+		this(id, name, null, null, 0, data);
+	}
+
 	/**
 	 * @return the node id
 	 */
@@ -111,14 +178,42 @@ public class HATreeNode {
 
 	/**
 	 * Depending whether the node is a real instance or a computed centroid,
-	 * returns its position in the space.
+	 * returns its position in the space. Internal nodes built by engines that
+	 * do not track centroids return null. Sparse and single precision nodes
+	 * return a new double copy, so distances should use {@link #getSparseData()}
+	 * or {@link #getFloatData()} when they are not null.
 	 * 
 	 * @return the spatial position of this node
 	 */
 	public double[] getData() {
+		if (data == null && sparseData != null) {
+			return sparseData.toDense();
+		}
+		if (data == null && floatData != null) {
+			double[] copy = new double[floatData.length];
+			for (int i = 0; i < copy.length; i++) {
+				copy[i] = floatData[i];
+			}
+			return copy;
+		}
 		return data;
 	}
 
+	/**
+	 * @return the spatial position of this node if it is stored in single
+	 * precision, null otherwise
+	 */
+	public float[] getFloatData() {
+		return floatData;
+	}
+
+	/**
+	 * @return the spatial position of this node if it is sparse, null otherwise
+	 */
+	public SparseVector getSparseData() {
+		return sparseData;
+	}
+
 	/**
 	 * @return the size of the whole tree
 	 */
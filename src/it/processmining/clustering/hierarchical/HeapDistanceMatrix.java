@@ -0,0 +1,77 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.Arrays;
+
+/**
+ * Condensed distance matrix stored in a double array on the heap
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class HeapDistanceMatrix extends CondensedDistanceMatrix {
+
+	/* Largest array the virtual machines allocate */
+	private static final long MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+	private double[] data;
+
+	/**
+	 * Builds a zero matrix
+	 *
+	 * @param size the number of rows (= columns)
+	 */
+	HeapDistanceMatrix(int size) {
+		super(size);
+		long length = offset(size);
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Too many instances for an on-heap distance matrix: " + size);
+		}
+		this.data = new double[(int) length];
+	}
+
+	/**
+	 * Builds a matrix over a packed array, which is owned by the matrix afterwards
+	 *
+	 * @param size the number of rows (= columns)
+	 * @param data the packed distances, at least size * (size - 1) / 2
+	 */
+	HeapDistanceMatrix(int size, double[] data) {
+		super(size);
+		this.data = data;
+	}
+
+	@Override
+	protected double getAt(long index) {
+		return data[(int) index];
+	}
+
+	@Override
+	protected void setAt(long index, double value) {
+		data[(int) index] = value;
+	}
+
+	@Override
+	HAClusterer.Precision getPrecision() {
+		return HAClusterer.Precision.DOUBLE;
+	}
+
+	@Override
+	protected void ensureCapacity(long length) {
+		if (length > data.length) {
+			data = Arrays.copyOf(data, (int) grownCapacity(length, data.length, MAX_LENGTH));
+		}
+	}
+
+	@Override
+	void square() {
+		int length = (int) offset(size());
+		for (int k = 0; k < length; k++) {
+			data[k] *= data[k];
+		}
+	}
+
+	@Override
+	CondensedDistanceMatrix copy() {
+		return new HeapDistanceMatrix(size(), Arrays.copyOf(data, (int) offset(size())));
+	}
+}
@@ -0,0 +1,150 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Clustering engine for the linkages that cannot use nearest-neighbor chains.
+ * See: D. Muellner, "Modern hierarchical, agglomerative clustering algorithms", 2011
+ *
+ * Every live cluster caches its nearest neighbor among the clusters in the
+ * following slots, and a priority queue keeps the clusters ordered by that
+ * distance, so the closest pair is at the top of the queue. After a merge only
+ * the distances that got smaller are pushed to the queue; cached neighbors that
+ * died or moved away are recomputed lazily, when they reach the top.
+ * Equal distances are merged as by an exhaustive search over the node ids, the
+ * pair with the lowest id first, then the lowest other id, and the child with
+ * the lower id goes left: as the distances of the default centroid
+ * recomputation are not monotone, merging ties in another order would build
+ * another tree. Undefined (NaN) distances, such as the cosine distance of zero
+ * vectors, are treated as infinite, so such pairs are merged last.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class HeapEngine extends LinkageEngine {
+
+	private int[] neighbors;
+	/* The node id of each cached neighbor, which changes if a union takes its slot */
+	private int[] neighborIds;
+	private double[] minDistances;
+	/* The node ids of each cluster and of its neighbor, which order equal distances */
+	private long[] minPairs;
+	private IndexedMinHeap queue;
+
+	/**
+	 * @param distances the distances between the leaves, overwritten while clustering
+	 * @param linkage the linkage
+	 */
+	HeapEngine(CondensedDistanceMatrix distances, Linkage linkage) {
+		super(distances, linkage);
+	}
+
+	/**
+	 * Builds an engine that recomputes the distances from the centroid of each merge
+	 *
+	 * @param distances the distances between the leaves, overwritten while clustering
+	 * @param dist the distance metric
+	 * @param length the number of dimensions of the instances
+	 */
+	HeapEngine(CondensedDistanceMatrix distances, Distance dist, int length) {
+		super(distances, dist, length);
+	}
+
+	@Override
+	protected void mergeAll(int n) {
+		if (n < 2) {
+			return;
+		}
+		neighbors = new int[n];
+		neighborIds = new int[n];
+		minDistances = new double[n];
+		minPairs = new long[n];
+		for (int i = 0; i < n; i++) {
+			findNeighbor(i);
+		}
+		queue = new IndexedMinHeap(minDistances.clone(), minPairs.clone());
+
+		for (int remaining = n; remaining > 1; remaining--) {
+			// Pop stale entries until the top holds a valid closest pair
+			int i = queue.top();
+			while (neighbors[i] < 0 || clusters[neighbors[i]] != neighborIds[i]
+					|| Double.compare(key(distances.get(i, neighbors[i])), minDistances[i]) != 0) {
+				findNeighbor(i);
+				queue.update(i, minDistances[i], minPairs[i]);
+				if (neighbors[i] < 0 && queue.top() == i) {
+					// only the last live slot has no neighbor, and it is never the closest
+					throw new IllegalStateException("The closest cluster has no neighbor to merge with");
+				}
+				i = queue.top();
+			}
+			int j = neighbors[i];
+
+			// The union takes the slot of j, which follows i
+			queue.remove(i);
+			merge(j, i, clusters[i] < clusters[j] ? i : j);
+
+			// Only the clusters that got closer to the union need to be updated now
+			for (int k = 0; k < j; k++) {
+				if (clusters[k] >= 0) {
+					double d = key(distances.get(k, j));
+					long pair = pair(k, j);
+					if (d < minDistances[k] || (d == minDistances[k] && pair < minPairs[k])) {
+						neighbors[k] = j;
+						neighborIds[k] = clusters[j];
+						minDistances[k] = d;
+						minPairs[k] = pair;
+						queue.update(k, d, pair);
+					}
+				}
+			}
+			findNeighbor(j);
+			queue.update(j, minDistances[j], minPairs[j]);
+		}
+	}
+
+	/**
+	 * Finds the nearest live neighbor of a cluster among the following slots.
+	 * Clusters without one get an infinite distance, and ties go to the pair
+	 * with the lowest node ids.
+	 *
+	 * @param i the slot of the cluster
+	 */
+	private void findNeighbor(int i) {
+		int nearest = -1;
+		double minDistance = Double.POSITIVE_INFINITY;
+		long minPair = Long.MAX_VALUE;
+		for (int k = i + 1; k < clusters.length; k++) {
+			if (clusters[k] >= 0) {
+				double d = key(distances.get(i, k));
+				long pair = pair(i, k);
+				if (nearest < 0 || d < minDistance || (d == minDistance && pair < minPair)) {
+					minDistance = d;
+					minPair = pair;
+					nearest = k;
+				}
+			}
+		}
+		neighbors[i] = nearest;
+		neighborIds[i] = nearest < 0 ? -1 : clusters[nearest];
+		minDistances[i] = minDistance;
+		minPairs[i] = minPair;
+	}
+
+	/**
+	 * @param a the slot of a live cluster
+	 * @param b the slot of another live cluster
+	 * @return the lower node id of the two clusters in the high bits, and the
+	 * higher one in the low bits, so that pairs compare as by their ids
+	 */
+	private long pair(int a, int b) {
+		int lower = Math.min(clusters[a], clusters[b]);
+		int higher = Math.max(clusters[a], clusters[b]);
+		return ((long) lower << 32) | higher;
+	}
+
+	/**
+	 * @param distance a distance
+	 * @return the distance, or infinity if it is NaN
+	 */
+	private static double key(double distance) {
+		return Double.isNaN(distance) ? Double.POSITIVE_INFINITY : distance;
+	}
+}
@@ -0,0 +1,79 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.Arrays;
+
+/**
+ * Condensed distance matrix stored in a float array on the heap, for
+ * {@link HAClusterer.Precision#SINGLE} clustering. It takes half the memory of a
+ * {@link HeapDistanceMatrix}, and distances are rounded to single precision.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class HeapFloatDistanceMatrix extends CondensedDistanceMatrix {
+
+	/* Largest array the virtual machines allocate */
+	private static final long MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+	private float[] data;
+
+	/**
+	 * Builds a zero matrix
+	 *
+	 * @param size the number of rows (= columns)
+	 */
+	HeapFloatDistanceMatrix(int size) {
+		super(size);
+		long length = offset(size);
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Too many instances for an on-heap distance matrix: " + size);
+		}
+		this.data = new float[(int) length];
+	}
+
+	/**
+	 * Builds a matrix over a packed array, which is owned by the matrix afterwards
+	 *
+	 * @param size the number of rows (= columns)
+	 * @param data the packed distances, at least size * (size - 1) / 2
+	 */
+	HeapFloatDistanceMatrix(int size, float[] data) {
+		super(size);
+		this.data = data;
+	}
+
+	@Override
+	protected double getAt(long index) {
+		return data[(int) index];
+	}
+
+	@Override
+	protected void setAt(long index, double value) {
+		data[(int) index] = (float) value;
+	}
+
+	@Override
+	HAClusterer.Precision getPrecision() {
+		return HAClusterer.Precision.SINGLE;
+	}
+
+	@Override
+	protected void ensureCapacity(long length) {
+		if (length > data.length) {
+			data = Arrays.copyOf(data, (int) grownCapacity(length, data.length, MAX_LENGTH));
+		}
+	}
+
+	@Override
+	void square() {
+		int length = (int) offset(size());
+		for (int k = 0; k < length; k++) {
+			data[k] *= data[k];
+		}
+	}
+
+	@Override
+	CondensedDistanceMatrix copy() {
+		return new HeapFloatDistanceMatrix(size(), Arrays.copyOf(data, (int) offset(size())));
+	}
+}
@@ -0,0 +1,147 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Binary min-heap of the integers 0 to n - 1, keyed by a double, that supports
+ * changing and removing the key of any element in O(log n). Equal keys are
+ * ordered by a second, long key, then by element. Keys are compared as by
+ * {@link Double#compare}, so NaN keys come after every other key.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class IndexedMinHeap {
+
+	private int[] heap;
+	private int[] position;
+	private double[] keys;
+	private long[] ties;
+	private int size;
+
+	/**
+	 * Builds a heap of the elements 0 to keys.length - 1, in O(n)
+	 *
+	 * @param keys the initial keys, owned by the heap afterwards
+	 * @param ties the initial keys that order equal keys, owned by the heap
+	 * afterwards
+	 */
+	IndexedMinHeap(double[] keys, long[] ties) {
+		this.keys = keys;
+		this.ties = ties;
+		size = keys.length;
+		heap = new int[size];
+		position = new int[size];
+		for (int i = 0; i < size; i++) {
+			heap[i] = i;
+			position[i] = i;
+		}
+		for (int p = size / 2 - 1; p >= 0; p--) {
+			siftDown(p);
+		}
+	}
+
+	/**
+	 * @return true if the heap has no elements
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the element with the smallest key
+	 */
+	int top() {
+		return heap[0];
+	}
+
+	/**
+	 * @param element an element
+	 * @return the key of the element
+	 */
+	double key(int element) {
+		return keys[element];
+	}
+
+	/**
+	 * Changes the key of an element still in the heap
+	 *
+	 * @param element the element
+	 * @param key the new key
+	 * @param tie the new key that orders equal keys
+	 */
+	void update(int element, double key, long tie) {
+		double old = keys[element];
+		long oldTie = ties[element];
+		keys[element] = key;
+		ties[element] = tie;
+		int c = Double.compare(key, old);
+		if (c < 0 || (c == 0 && tie < oldTie)) {
+			siftUp(position[element]);
+		} else {
+			siftDown(position[element]);
+		}
+	}
+
+	/**
+	 * Removes an element, if it is still in the heap
+	 *
+	 * @param element the element
+	 */
+	void remove(int element) {
+		int p = position[element];
+		if (p < 0) {
+			return;
+		}
+		position[element] = -1;
+		size--;
+		if (p < size) {
+			int moved = heap[size];
+			heap[p] = moved;
+			position[moved] = p;
+			siftUp(p);
+			if (position[moved] == p) {
+				siftDown(p);
+			}
+		}
+	}
+
+	private boolean less(int a, int b) {
+		int c = Double.compare(keys[a], keys[b]);
+		return c < 0 || (c == 0 && (ties[a] < ties[b] || (ties[a] == ties[b] && a < b)));
+	}
+
+	private void siftUp(int p) {
+		int element = heap[p];
+		while (p > 0) {
+			int parent = (p - 1) / 2;
+			if (!less(element, heap[parent])) {
+				break;
+			}
+			heap[p] = heap[parent];
+			position[heap[p]] = p;
+			p = parent;
+		}
+		heap[p] = element;
+		position[element] = p;
+	}
+
+	private void siftDown(int p) {
+		int element = heap[p];
+		while (true) {
+			int child = 2 * p + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && less(heap[child + 1], heap[child])) {
+				child++;
+			}
+			if (!less(heap[child], element)) {
+				break;
+			}
+			heap[p] = heap[child];
+			position[heap[p]] = p;
+			p = child;
+		}
+		heap[p] = element;
+		position[element] = p;
+	}
+}
@@ -0,0 +1,40 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Linkage interface: computes the distance between a merged cluster and another
+ * cluster with the Lance-Williams recurrence, from the distances between the
+ * clusters before the merge.
+ * See: http://en.wikipedia.org/wiki/Hierarchical_clustering
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ */
+public interface Linkage {
+
+	/**
+	 * Computes the distance between the union of clusters i and j and cluster k
+	 * 
+	 * @param dik the distance between i and k
+	 * @param djk the distance between j and k
+	 * @param dij the distance between i and j
+	 * @param ni the size of i
+	 * @param nj the size of j
+	 * @param nk the size of k
+	 * @return the distance between the union of i and j and k
+	 */
+	public double update(double dik, double djk, double dij, int ni, int nj, int nk);
+
+	/**
+	 * A linkage is reducible if merging two clusters never brings the union closer
+	 * to a third cluster than both of them. Reducible linkages can be clustered with
+	 * nearest-neighbor chains.
+	 * 
+	 * @return true if the linkage is reducible
+	 */
+	public boolean isReducible();
+
+	/**
+	 * @return true if the recurrence works on squared distances
+	 */
+	public boolean isSquared();
+
+}
@@ -0,0 +1,189 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.List;
+
+/**
+ * Base class of the clustering engines. Clusters live in slots of a working
+ * distance matrix: when two clusters are merged, the union takes the slot of the
+ * first one and its distances are updated in place. With a {@link Linkage} they
+ * are updated with the Lance-Williams recurrence, so the feature vectors are never
+ * used again; without one, the union is represented by the centroid of its
+ * children, and its distances are recomputed with the distance metric. The
+ * centroids of merged clusters are dropped as soon as they are merged again.
+ *
+ * The merges are recorded in a {@link LinkageMatrix}.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+abstract class LinkageEngine {
+
+	protected CondensedDistanceMatrix distances;
+	protected Linkage linkage;
+	protected Distance dist;
+	protected int length;
+	/* The node id of the cluster in each slot, or -1 for merged slots */
+	protected int[] clusters;
+	protected int[] sizes;
+	private HATreeNode[] centroids;
+	private LinkageMatrix result;
+	/* Told about every merge, if set */
+	ProgressTracker tracker;
+	/* Distances recomputed from centroids */
+	private long distanceEvaluations;
+
+	/**
+	 * Builds the engine over a working copy of the distances between the leaves.
+	 * The matrix is overwritten while clustering.
+	 *
+	 * @param distances the distances between the leaves, indexed as the leaves
+	 * @param linkage the linkage used to update the distances
+	 */
+	LinkageEngine(CondensedDistanceMatrix distances, Linkage linkage) {
+		this.distances = distances;
+		this.linkage = linkage;
+	}
+
+	/**
+	 * Builds an engine that recomputes the distances from the centroid of each merge
+	 *
+	 * @param distances the distances between the leaves, indexed as the leaves
+	 * @param dist the distance metric
+	 * @param length the number of dimensions of the instances
+	 */
+	LinkageEngine(CondensedDistanceMatrix distances, Distance dist, int length) {
+		this.distances = distances;
+		this.dist = dist;
+		this.length = length;
+	}
+
+	/**
+	 * Runs the clustering
+	 *
+	 * @param leaves the leaf nodes, with ids from 0 to n - 1
+	 * @return the hierarchy
+	 */
+	LinkageMatrix cluster(List<HATreeNode> leaves) {
+		int n = leaves.size();
+		result = new LinkageMatrix(n);
+		clusters = new int[n];
+		sizes = new int[n];
+		for (int i = 0; i < n; i++) {
+			clusters[i] = i;
+			sizes[i] = 1;
+		}
+		if (linkage == null) {
+			centroids = leaves.toArray(new HATreeNode[n]);
+		} else if (linkage.isSquared()) {
+			distances.square();
+		}
+
+		if (n > 1) {
+			mergeAll(n);
+		}
+		centroids = null;
+		return result;
+	}
+
+	/**
+	 * @return the number of distances recomputed from centroids while clustering,
+	 * which is 0 with a linkage
+	 */
+	long getDistanceEvaluations() {
+		return distanceEvaluations;
+	}
+
+	/**
+	 * Performs the n - 1 merges through {@link #merge(int, int)}
+	 *
+	 * @param n the number of leaves
+	 */
+	protected abstract void mergeAll(int n);
+
+	/**
+	 * Merges two live clusters: the union takes the slot of a, and b is dropped.
+	 * Only the distances to live clusters are updated.
+	 *
+	 * @param a the slot that receives the merged cluster, and its left child
+	 * @param b the slot that is dropped
+	 */
+	protected void merge(int a, int b) {
+		merge(a, b, a);
+	}
+
+	/**
+	 * Merges two live clusters: the union takes the slot of a, and b is dropped.
+	 * Only the distances to live clusters are updated.
+	 *
+	 * @param a the slot that receives the merged cluster
+	 * @param b the slot that is dropped
+	 * @param left the slot of the left child of the union, a or b
+	 */
+	protected void merge(int a, int b, int left) {
+		int right = left == a ? b : a;
+		double dab = distances.get(a, b);
+		int na = sizes[a];
+		int nb = sizes[b];
+		if (linkage != null) {
+			double height = linkage.isSquared() ? Math.sqrt(Math.max(dab, 0)) : dab;
+			clusters[a] = result.merge(clusters[left], clusters[right], height);
+			for (int k = 0; k < clusters.length; k++) {
+				if (k != a && k != b && clusters[k] >= 0) {
+					distances.set(a, k, linkage.update(distances.get(a, k), distances.get(b, k), dab, na, nb, sizes[k]));
+				}
+			}
+		} else {
+			clusters[a] = result.merge(clusters[left], clusters[right], dab);
+			centroids[a] = createCentroid(clusters[a], centroids[a], centroids[b], length);
+			centroids[b] = null;
+			for (int k = 0; k < clusters.length; k++) {
+				if (k != a && k != b && clusters[k] >= 0) {
+					distances.set(a, k, dist.computeDistance(centroids[k], centroids[a]));
+					distanceEvaluations++;
+				}
+			}
+		}
+		clusters[b] = -1;
+		sizes[a] = na + nb;
+		if (tracker != null) {
+			tracker.merged();
+		}
+	}
+
+	/**
+	 * Creates a centroid for the two nodes: a node without children, whose
+	 * position is the midpoint of theirs
+	 * 
+	 * @param id the id of the centroid
+	 * @param n1 the first node
+	 * @param n2 the second node
+	 * @param length the number of dimensions of the nodes
+	 * @return their centroid
+	 */
+	static HATreeNode createCentroid(int id, HATreeNode n1, HATreeNode n2, int length) {
+		if (n1.getSparseData() != null && n2.getSparseData() != null) {
+			return new HATreeNode(id, "", SparseVector.midpoint(n1.getSparseData(), n2.getSparseData()));
+		}
+
+		if (n1.getFloatData() != null && n2.getFloatData() != null) {
+			float[] f1 = n1.getFloatData();
+			float[] f2 = n2.getFloatData();
+			float[] f3 = new float[length];
+			for (int i = 0; i < length; i++) {
+				f3[i] = (f1[i] + f2[i]) / 2;
+			}
+			return new HATreeNode(id, "", f3);
+		}
+
+		double[] a1 = n1.getData();
+		double[] a2 = n2.getData();
+
+		double[] a3 = new double[length];
+
+		for (int i = 0; i < length; i++) {
+			a3[i] = (a1[i] + a2[i]) / 2;
+		}
+
+		return new HATreeNode(id, "", a3);
+	}
+}
@@ -0,0 +1,230 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.Arrays;
+
+/**
+ * Compact representation of a hierarchy, as parallel arrays indexed by node id,
+ * in the spirit of a SciPy linkage matrix.
+ * See: http://docs.scipy.org/doc/scipy/reference/generated/scipy.cluster.hierarchy.linkage.html
+ *
+ * The leaves are the instances, with ids from 0 to n - 1; merge k creates the
+ * node n + k, so that the rows n to 2n - 2 of the arrays list the merges in
+ * order. Each node takes 32 bytes and no object, so the hierarchy of a
+ * million instances fits in 64 MB. Instances inserted into a {@link HACluster}
+ * later take the next free ids, and repairs rewrite merges in place.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class LinkageMatrix {
+
+	private int[] lefts;
+	private int[] rights;
+	private int[] parents;
+	private int[] sizes;
+	private double[] heights;
+	private double[] maxDistances;
+	private int nodeCount;
+	private int root = -1;
+
+	/**
+	 * Builds a hierarchy of leaves waiting to be merged
+	 *
+	 * @param leaves the number of leaves
+	 */
+	LinkageMatrix(int leaves) {
+		int capacity = Math.max(2 * leaves - 1, 1);
+		lefts = new int[capacity];
+		rights = new int[capacity];
+		parents = new int[capacity];
+		sizes = new int[capacity];
+		heights = new double[capacity];
+		maxDistances = new double[capacity];
+		for (int k = 0; k < leaves; k++) {
+			addLeaf();
+		}
+		if (leaves == 1) {
+			root = 0;
+		}
+	}
+
+	/**
+	 * Builds a hierarchy over arrays indexed by node id, which are owned by the
+	 * hierarchy afterwards
+	 *
+	 * @param lefts the left children, -1 for leaves
+	 * @param rights the right children, -1 for leaves
+	 * @param parents the parents, -1 for the root
+	 * @param sizes the number of leaves under each node, 0 for removed merges
+	 * @param heights the distances between the children
+	 * @param maxDistances the maximum distances to a leaf
+	 * @param nodeCount the number of node ids
+	 * @param root the id of the root, or -1
+	 */
+	LinkageMatrix(int[] lefts, int[] rights, int[] parents, int[] sizes, double[] heights, double[] maxDistances,
+			int nodeCount, int root) {
+		this.lefts = lefts;
+		this.rights = rights;
+		this.parents = parents;
+		this.sizes = sizes;
+		this.heights = heights;
+		this.maxDistances = maxDistances;
+		this.nodeCount = nodeCount;
+		this.root = root;
+	}
+
+	/**
+	 * Adds a leaf, which is not attached to the hierarchy
+	 *
+	 * @return the id of the leaf
+	 */
+	int addLeaf() {
+		int id = newNode();
+		lefts[id] = -1;
+		rights[id] = -1;
+		sizes[id] = 1;
+		return id;
+	}
+
+	/**
+	 * Merges two nodes into a new one, which becomes the root
+	 *
+	 * @param left the id of the left child
+	 * @param right the id of the right child
+	 * @param height the distance between the children
+	 * @return the id of the merge
+	 */
+	int merge(int left, int right, double height) {
+		int id = newNode();
+		set(id, left, right, height);
+		parents[id] = -1;
+		root = id;
+		return id;
+	}
+
+	/**
+	 * Rewrites a merge over new children. Its size and maximum distance are
+	 * updated, but not the ones of its ancestors.
+	 *
+	 * @param id the id of the merge
+	 * @param left the id of the left child
+	 * @param right the id of the right child
+	 * @param height the distance between the children
+	 */
+	void set(int id, int left, int right, double height) {
+		lefts[id] = left;
+		rights[id] = right;
+		heights[id] = height;
+		sizes[id] = sizes[left] + sizes[right];
+		maxDistances[id] = height + Math.max(maxDistances[left], maxDistances[right]);
+		parents[left] = id;
+		parents[right] = id;
+	}
+
+	/**
+	 * Drops a merge that is no longer part of the hierarchy
+	 *
+	 * @param id the id of the merge
+	 */
+	void remove(int id) {
+		lefts[id] = -1;
+		rights[id] = -1;
+		parents[id] = -1;
+		sizes[id] = 0;
+	}
+
+	/**
+	 * @param root the id of the new root
+	 */
+	void setRoot(int root) {
+		this.root = root;
+		if (root >= 0) {
+			parents[root] = -1;
+		}
+	}
+
+	private int newNode() {
+		if (nodeCount == lefts.length) {
+			int capacity = 2 * lefts.length;
+			lefts = Arrays.copyOf(lefts, capacity);
+			rights = Arrays.copyOf(rights, capacity);
+			parents = Arrays.copyOf(parents, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+			heights = Arrays.copyOf(heights, capacity);
+			maxDistances = Arrays.copyOf(maxDistances, capacity);
+		}
+		int id = nodeCount++;
+		parents[id] = -1;
+		return id;
+	}
+
+	/**
+	 * @return the id of the root, or -1 if there are no leaves
+	 */
+	public int getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the number of node ids, including removed merges
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @param id a node id
+	 * @return true if the node is a leaf
+	 */
+	public boolean isLeaf(int id) {
+		return lefts[id] < 0;
+	}
+
+	/**
+	 * @param id a node id
+	 * @return the id of its left child, or -1 for leaves
+	 */
+	public int getLeft(int id) {
+		return lefts[id];
+	}
+
+	/**
+	 * @param id a node id
+	 * @return the id of its right child, or -1 for leaves
+	 */
+	public int getRight(int id) {
+		return rights[id];
+	}
+
+	/**
+	 * @param id a node id
+	 * @return the id of its parent, or -1 for the root
+	 */
+	public int getParent(int id) {
+		return parents[id];
+	}
+
+	/**
+	 * @param id a node id
+	 * @return the distance between its children, 0 for leaves
+	 */
+	public double getHeight(int id) {
+		return heights[id];
+	}
+
+	/**
+	 * @param id a node id
+	 * @return the number of leaves under it
+	 */
+	public int getSize(int id) {
+		return sizes[id];
+	}
+
+	/**
+	 * @param id a node id
+	 * @return the maximum distance to a leaf, as {@link HATreeNode#getMaxDistance()}
+	 */
+	public double getMaxDistance(int id) {
+		return maxDistances[id];
+	}
+}
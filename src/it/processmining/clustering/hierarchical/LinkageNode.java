@@ -0,0 +1,56 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * View of a merge of a {@link LinkageMatrix} as a {@link HATreeNode}, for the
+ * callers that walk the hierarchy as a tree. Views are created on demand by
+ * their {@link HACluster}, and hold no data of their own.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class LinkageNode extends HATreeNode {
+
+	private HACluster cluster;
+	private LinkageMatrix linkage;
+
+	/**
+	 * @param cluster the cluster that creates the views of the children
+	 * @param linkage the hierarchy
+	 * @param id the id of the merge
+	 */
+	LinkageNode(HACluster cluster, LinkageMatrix linkage, int id) {
+		super(id);
+		this.cluster = cluster;
+		this.linkage = linkage;
+	}
+
+	@Override
+	public HATreeNode getLeft() {
+		return cluster.getInstance(linkage.getLeft(getId()));
+	}
+
+	@Override
+	public HATreeNode getRight() {
+		return cluster.getInstance(linkage.getRight(getId()));
+	}
+
+	@Override
+	public double getDistance() {
+		return linkage.getHeight(getId());
+	}
+
+	@Override
+	public double getMaxDistance() {
+		return linkage.getMaxDistance(getId());
+	}
+
+	@Override
+	public int getSize() {
+		return linkage.getSize(getId());
+	}
+
+	@Override
+	public boolean isLeaf() {
+		return false;
+	}
+}
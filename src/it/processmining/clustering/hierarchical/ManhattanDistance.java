@@ -6,19 +6,109 @@ package it.processmining.clustering.hierarchical;
  * @author Alessandro Bruni <alessandro.bruni@gmail.com>
  *
  */
-public class ManhattanDistance implements Distance {
+public class ManhattanDistance implements BatchDistance {
 
 	private static ManhattanDistance instance = new ManhattanDistance();
 
 	public double computeDistance(HATreeNode n1, HATreeNode n2) {
-		double[] a1 = n1.getData();
-		double[] a2 = n2.getData();
-		double sum = 0;
+		if (n1.getSparseData() != null && n2.getSparseData() != null) {
+			return distance(n1.getSparseData(), n2.getSparseData());
+		}
+		if (n1.getFloatData() != null && n2.getFloatData() != null) {
+			return distance(n1.getFloatData(), n2.getFloatData());
+		}
+		return distance(n1.getData(), n2.getData());
+	}
+
+	public void computeDistances(double[] a, double[][] others, int from, int to, double[] result) {
+		for (int k = from; k < to; k++) {
+			result[k - from] = distance(a, others[k]);
+		}
+	}
+
+	public void computeDistances(float[] a, float[][] others, int from, int to, double[] result) {
+		for (int k = from; k < to; k++) {
+			result[k - from] = distance(a, others[k]);
+		}
+	}
 
-		for (int i = 0; i < a1.length; i++) {
-			sum += Math.abs(a1[i] - a2[i]);
+	public void computeDistances(SparseVector a, SparseVector[] others, int from, int to, double[] result) {
+		for (int k = from; k < to; k++) {
+			result[k - from] = distance(a, others[k]);
 		}
+	}
 
+	/**
+	 * Sums the absolute differences over four independent accumulators
+	 * 
+	 * @param a1 the first point
+	 * @param a2 the second point
+	 * @return the Manhattan distance
+	 */
+	static double distance(double[] a1, double[] a2) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (int end = a1.length - 3; i < end; i += 4) {
+			s0 += Math.abs(a1[i] - a2[i]);
+			s1 += Math.abs(a1[i + 1] - a2[i + 1]);
+			s2 += Math.abs(a1[i + 2] - a2[i + 2]);
+			s3 += Math.abs(a1[i + 3] - a2[i + 3]);
+		}
+		for (; i < a1.length; i++) {
+			s0 += Math.abs(a1[i] - a2[i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	/**
+	 * Sums the absolute differences of single precision points in double precision
+	 * 
+	 * @param a1 the first point
+	 * @param a2 the second point
+	 * @return the Manhattan distance
+	 */
+	static double distance(float[] a1, float[] a2) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (int end = a1.length - 3; i < end; i += 4) {
+			s0 += Math.abs((double) a1[i] - a2[i]);
+			s1 += Math.abs((double) a1[i + 1] - a2[i + 1]);
+			s2 += Math.abs((double) a1[i + 2] - a2[i + 2]);
+			s3 += Math.abs((double) a1[i + 3] - a2[i + 3]);
+		}
+		for (; i < a1.length; i++) {
+			s0 += Math.abs((double) a1[i] - a2[i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	/**
+	 * Sums the absolute differences over the union of the non-zero coordinates
+	 * 
+	 * @param a1 the first point
+	 * @param a2 the second point
+	 * @return the Manhattan distance
+	 */
+	static double distance(SparseVector a1, SparseVector a2) {
+		int[] i1 = a1.getIndices(), i2 = a2.getIndices();
+		double[] v1 = a1.getValues(), v2 = a2.getValues();
+		double sum = 0;
+		int i = 0, j = 0;
+		while (i < i1.length && j < i2.length) {
+			if (i1[i] == i2[j]) {
+				sum += Math.abs(v1[i++] - v2[j++]);
+			} else if (i1[i] < i2[j]) {
+				sum += Math.abs(v1[i++]);
+			} else {
+				sum += Math.abs(v2[j++]);
+			}
+		}
+		for (; i < i1.length; i++) {
+			sum += Math.abs(v1[i]);
+		}
+		for (; j < i2.length; j++) {
+			sum += Math.abs(v2[j]);
+		}
 		return sum;
 	}
 	
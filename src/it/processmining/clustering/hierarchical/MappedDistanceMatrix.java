@@ -0,0 +1,213 @@
+package it.processmining.clustering.hierarchical;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Condensed distance matrix stored in a memory-mapped temporary file. The heap
+ * only holds the buffer handles, while the distances are paged in and out by the
+ * operating system, so the matrix can be larger than the heap and the RAM.
+ *
+ * A buffer cannot map more than 2 GB, so the file is mapped in chunks.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class MappedDistanceMatrix extends CondensedDistanceMatrix {
+
+	/* 2^27 values per chunk, 1 GB in double precision */
+	private static final int CHUNK_SHIFT = 27;
+	private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+	private boolean single;
+	private DoubleBuffer[] chunks;
+	private FloatBuffer[] floatChunks;
+	private long capacity;
+	private boolean readOnly;
+
+	/**
+	 * Builds a zero matrix in a new temporary file, which is deleted when no
+	 * longer needed
+	 *
+	 * @param size the number of rows (= columns)
+	 * @param single true to store the distances in single precision
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	MappedDistanceMatrix(int size, boolean single) throws IOException {
+		super(size);
+		this.single = single;
+		map(offset(size));
+	}
+
+	/**
+	 * Maps a matrix stored in a file, from the given position, in the layout
+	 * written by {@link HAClusterIO}. The mapping is read-only: the first change
+	 * to the distances, or growing the matrix, copies it to a temporary file.
+	 *
+	 * @param size the number of rows (= columns)
+	 * @param single true if the distances are stored in single precision
+	 * @param channel the channel of the file, which can be closed afterwards
+	 * @param position the position of the first distance in the file
+	 * @throws IOException if the file cannot be mapped
+	 */
+	MappedDistanceMatrix(int size, boolean single, FileChannel channel, long position) throws IOException {
+		super(size);
+		this.single = single;
+		mapChunks(channel, position, offset(size), FileChannel.MapMode.READ_ONLY, ByteOrder.BIG_ENDIAN);
+		readOnly = true;
+	}
+
+	/**
+	 * Maps a new temporary file holding a packed array of the given length
+	 *
+	 * @param length the length of the packed array
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	private void map(long length) throws IOException {
+		Path file = Files.createTempFile("hacluster", ".dist");
+		FileChannel channel;
+		try {
+			/* The file is deleted when the channel is closed, or, where mapped files
+			 * cannot be deleted, once its mappings are released after a remap */
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.DELETE_ON_CLOSE);
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		try {
+			/* Mapping extends the file to the length of the array */
+			mapChunks(channel, 0, length, FileChannel.MapMode.READ_WRITE, ByteOrder.nativeOrder());
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Maps a packed array of the given length from a file, in chunks
+	 *
+	 * @param channel the channel of the file
+	 * @param position the position of the array in the file
+	 * @param length the length of the packed array
+	 * @param mode the mapping mode
+	 * @param order the byte order of the distances in the file
+	 * @throws IOException if the file cannot be mapped
+	 */
+	private void mapChunks(FileChannel channel, long position, long length, FileChannel.MapMode mode, ByteOrder order)
+			throws IOException {
+		int bytes = single ? 4 : 8;
+		int count = (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+		DoubleBuffer[] newChunks = single ? null : new DoubleBuffer[count];
+		FloatBuffer[] newFloatChunks = single ? new FloatBuffer[count] : null;
+		for (int c = 0; c < count; c++) {
+			long start = (long) c << CHUNK_SHIFT;
+			long values = Math.min(length - start, 1L << CHUNK_SHIFT);
+			MappedByteBuffer buffer = channel.map(mode, position + start * bytes, values * bytes);
+			buffer.order(order);
+			if (single) {
+				newFloatChunks[c] = buffer.asFloatBuffer();
+			} else {
+				newChunks[c] = buffer.asDoubleBuffer();
+			}
+		}
+		chunks = newChunks;
+		floatChunks = newFloatChunks;
+		capacity = length;
+	}
+
+	@Override
+	protected double getAt(long index) {
+		int chunk = (int) (index >>> CHUNK_SHIFT);
+		if (single) {
+			return floatChunks[chunk].get((int) (index & CHUNK_MASK));
+		}
+		return chunks[chunk].get((int) (index & CHUNK_MASK));
+	}
+
+	@Override
+	protected void setAt(long index, double value) {
+		if (readOnly) {
+			remap(capacity);
+		}
+		int chunk = (int) (index >>> CHUNK_SHIFT);
+		if (single) {
+			floatChunks[chunk].put((int) (index & CHUNK_MASK), (float) value);
+		} else {
+			chunks[chunk].put((int) (index & CHUNK_MASK), value);
+		}
+	}
+
+	@Override
+	HAClusterer.Precision getPrecision() {
+		return single ? HAClusterer.Precision.SINGLE : HAClusterer.Precision.DOUBLE;
+	}
+
+	@Override
+	protected void ensureCapacity(long length) {
+		if (length > capacity) {
+			remap(grownCapacity(length, capacity, Long.MAX_VALUE / 8));
+		}
+	}
+
+	/**
+	 * Moves the distances to a new temporary file
+	 *
+	 * @param length the length of the packed array of the new file
+	 */
+	private void remap(long length) {
+		DoubleBuffer[] oldChunks = chunks;
+		FloatBuffer[] oldFloatChunks = floatChunks;
+		try {
+			map(length);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot map the distance matrix", e);
+		}
+		copyChunks(oldChunks, oldFloatChunks, offset(size()));
+		readOnly = false;
+	}
+
+	@Override
+	CondensedDistanceMatrix copy() {
+		MappedDistanceMatrix copy;
+		try {
+			copy = new MappedDistanceMatrix(size(), single);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot map the distance matrix", e);
+		}
+		copy.copyChunks(chunks, floatChunks, offset(size()));
+		return copy;
+	}
+
+	/**
+	 * Bulk copies the first values of other chunks into the chunks of this matrix
+	 *
+	 * @param sources the chunks to copy, in double precision
+	 * @param floatSources the chunks to copy, in single precision
+	 * @param length the number of values to copy
+	 */
+	private void copyChunks(DoubleBuffer[] sources, FloatBuffer[] floatSources, long length) {
+		for (int c = 0; ((long) c << CHUNK_SHIFT) < length; c++) {
+			int values = (int) Math.min(length - ((long) c << CHUNK_SHIFT), 1L << CHUNK_SHIFT);
+			if (single) {
+				FloatBuffer source = floatSources[c].duplicate();
+				source.clear().limit(values);
+				FloatBuffer target = floatChunks[c].duplicate();
+				target.clear();
+				target.put(source);
+			} else {
+				DoubleBuffer source = sources[c].duplicate();
+				source.clear().limit(values);
+				DoubleBuffer target = chunks[c].duplicate();
+				target.clear();
+				target.put(source);
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Median linkage (WPGMC): the distance between two clusters is the distance
+ * between the midpoints of their children, as the centroids built by
+ * {@link HAClusterer#cluster()} without a linkage. Works on squared distances, and
+ * is only meaningful for the Euclidean distance.
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class MedianLinkage implements Linkage {
+
+	private static MedianLinkage instance = new MedianLinkage();
+
+	public double update(double dik, double djk, double dij, int ni, int nj, int nk) {
+		return (dik + djk) / 2 - dij / 4;
+	}
+
+	public boolean isReducible() {
+		return false;
+	}
+
+	public boolean isSquared() {
+		return true;
+	}
+
+	private MedianLinkage() {}
+
+	public static MedianLinkage create() {
+		return instance;
+	}
+
+}
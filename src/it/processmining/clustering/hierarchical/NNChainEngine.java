@@ -0,0 +1,94 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Hierarchical clustering engine based on reciprocal nearest-neighbor chains.
+ * See: http://en.wikipedia.org/wiki/Nearest-neighbor_chain_algorithm
+ *
+ * The chain is grown by following nearest neighbors until two clusters are
+ * reciprocal nearest neighbors, which are then merged. For reducible linkages
+ * this produces the same hierarchy as the exhaustive search, but the merge
+ * phase costs O(n^2) instead of O(n^3).
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class NNChainEngine extends LinkageEngine {
+
+	/**
+	 * @param distances the distances between the leaves, overwritten while clustering
+	 * @param linkage a reducible linkage
+	 */
+	NNChainEngine(CondensedDistanceMatrix distances, Linkage linkage) {
+		super(distances, linkage);
+	}
+
+	@Override
+	protected void mergeAll(int n) {
+		int[] chain = new int[n];
+		int chainLength = 0;
+
+		for (int remaining = n; remaining > 1; remaining--) {
+			if (chainLength == 0) {
+				chain[chainLength++] = firstActive();
+			}
+
+			// Grow the chain until its last two elements are reciprocal nearest neighbors
+			int a, b;
+			while (true) {
+				a = chain[chainLength - 1];
+				int previous = chainLength > 1 ? chain[chainLength - 2] : -1;
+				b = nearestNeighbor(a, previous);
+				if (b == previous) {
+					break;
+				}
+				chain[chainLength++] = b;
+			}
+			chainLength -= 2;
+
+			merge(a, b);
+		}
+	}
+
+	/**
+	 * Finds the nearest active neighbor of a cluster. Ties are resolved in favour
+	 * of the previous element of the chain, which guarantees termination.
+	 *
+	 * @param a the slot of the cluster
+	 * @param previous the slot of the previous element of the chain, or -1
+	 * @return the slot of the nearest neighbor
+	 */
+	private int nearestNeighbor(int a, int previous) {
+		int nearest = previous;
+		double minDistance = previous >= 0 ? distances.get(a, previous) : Double.MAX_VALUE;
+		for (int k = 0; k < clusters.length; k++) {
+			if (k != a && clusters[k] >= 0) {
+				double d = distances.get(a, k);
+				if (d < minDistance) {
+					minDistance = d;
+					nearest = k;
+				}
+			}
+		}
+		if (nearest < 0) {
+			// Every distance is Double.MAX_VALUE or NaN: pick any other cluster
+			for (int k = 0; k < clusters.length && nearest < 0; k++) {
+				if (k != a && clusters[k] >= 0) {
+					nearest = k;
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * @return the slot of the first live cluster
+	 */
+	private int firstActive() {
+		for (int k = 0; k < clusters.length; k++) {
+			if (clusters[k] >= 0) {
+				return k;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,83 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Distance matrix that stores no distance: each one is computed from the
+ * instances when it is read. It takes O(n) memory instead of O(n^2), for the
+ * clusters of {@link HAClusterer#setSampleSize(int) sampled} clusterings, where
+ * the instances are too many for their distances to be stored.
+ *
+ * Setting a distance has no effect.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class OnDemandDistanceMatrix extends CondensedDistanceMatrix {
+
+	private HATreeNode[] instances;
+	private Distance dist;
+
+	/**
+	 * @param instances the instances, indexed as in the matrix
+	 * @param dist the distance metric
+	 */
+	OnDemandDistanceMatrix(List<HATreeNode> instances, Distance dist) {
+		this(instances.size(), instances.toArray(new HATreeNode[Math.max(instances.size(), 1)]), dist);
+	}
+
+	private OnDemandDistanceMatrix(int size, HATreeNode[] instances, Distance dist) {
+		super(size);
+		this.instances = instances;
+		this.dist = dist;
+	}
+
+	@Override
+	void setInstance(int index, HATreeNode instance) {
+		if (index >= instances.length) {
+			instances = Arrays.copyOf(instances, Math.max(2 * instances.length, index + 1));
+		}
+		instances[index] = instance;
+	}
+
+	@Override
+	double get(int i, int j) {
+		return i == j ? 0 : dist.computeDistance(instances[i], instances[j]);
+	}
+
+	@Override
+	protected double getAt(long index) {
+		int j = (int) ((1 + Math.sqrt(1 + 8.0 * index)) / 2);
+		while (offset(j) > index) {
+			j--;
+		}
+		while (offset(j + 1) <= index) {
+			j++;
+		}
+		return get((int) (index - offset(j)), j);
+	}
+
+	@Override
+	protected void setAt(long index, double value) {
+	}
+
+	@Override
+	protected void ensureCapacity(long length) {
+	}
+
+	@Override
+	HAClusterer.Precision getPrecision() {
+		return HAClusterer.Precision.DOUBLE;
+	}
+
+	@Override
+	void square() {
+		throw new UnsupportedOperationException("Distances computed on demand cannot be squared");
+	}
+
+	@Override
+	CondensedDistanceMatrix copy() {
+		return new OnDemandDistanceMatrix(size(), instances.clone(), dist);
+	}
+}
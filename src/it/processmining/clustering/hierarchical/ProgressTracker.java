@@ -0,0 +1,65 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Counts the merges of a clustering for a {@link ClusteringMonitor}, and stops
+ * the clustering when the monitor asks to.
+ *
+ * The time left is extrapolated from the time taken so far. The engines update
+ * the distances of every live cluster at each merge, so merge k is weighted by
+ * the n - k clusters left, and the first half of the merges takes about three
+ * quarters of the time.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class ProgressTracker {
+
+	private ClusteringMonitor monitor;
+	private int total;
+	private int merges;
+	private long start;
+
+	/**
+	 * @param monitor the monitor
+	 * @param total the number of merges of the clustering
+	 */
+	ProgressTracker(ClusteringMonitor monitor, int total) {
+		this.monitor = monitor;
+		this.total = total;
+	}
+
+	/**
+	 * Starts the clock of the merges
+	 */
+	void start() {
+		start = System.nanoTime();
+	}
+
+	/**
+	 * Reports a merge to the monitor
+	 * 
+	 * @throws CancellationException if the monitor cancelled the clustering
+	 */
+	void merged() {
+		merges++;
+		/* Work of the merges as the number of clusters they update: k * n - k * (k - 1) / 2 */
+		double n = total + 1;
+		double done = merges * n - merges * (merges - 1.) / 2;
+		double all = total * n - total * (total - 1.) / 2;
+		long elapsed = System.nanoTime() - start;
+		long remaining = merges < total ? (long) (elapsed / 1e6 * (all - done) / done) : 0;
+		monitor.merged(merges, total, remaining);
+		checkCancelled();
+	}
+
+	/**
+	 * @throws CancellationException if the monitor cancelled the clustering
+	 */
+	void checkCancelled() {
+		if (monitor.isCancelled()) {
+			throw new CancellationException("Clustering cancelled after " + merges + " of " + total + " merges");
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Approximate clustering by sampling and assignment, for instance sets whose
+ * distance matrix does not fit in memory.
+ *
+ * A group of instances no larger than the sample size is clustered exactly.
+ * A larger group is split: a random sample of it becomes its representatives,
+ * every other instance joins its nearest representative, and each resulting
+ * subgroup is clustered in turn, below its representative. The subtrees of the
+ * subgroups are finally merged as the exact clustering of the representatives
+ * would merge them. The groups are processed with an explicit stack, so
+ * repeated splits of skewed data cannot overflow the call stack.
+ *
+ * Every distance matrix covers at most sampleSize instances.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+class SampleClusterer {
+
+	/* Instances assigned by each task of the parallel pass, and between cancellation checks */
+	private static final int ASSIGN_BLOCK = 256;
+
+	private HAClusterer clusterer;
+	private HATreeNode[] instances;
+	private Distance dist;
+	private int length;
+	private int sampleSize;
+	private int parallelism;
+	private Random random = new Random(0);
+	private ProgressTracker tracker;
+	private LinkageMatrix result;
+	private long distanceEvaluations;
+
+	/**
+	 * A set of instances clustered into one subtree
+	 */
+	private static class Group {
+		/* The indices of the instances, while the group is not split */
+		int[] members;
+		/* The representatives and their subgroups, once split */
+		int[] representatives;
+		Group[] subgroups;
+		/* The id of the subtree, once clustered */
+		int root = -1;
+
+		Group(int[] members) {
+			this.members = members;
+		}
+	}
+
+	/**
+	 * @param clusterer the clusterer, which provides the engines and the distance matrices
+	 * @param instances the instances, with ids from 0 to n - 1
+	 * @param dist the distance metric
+	 * @param length the number of dimensions of the instances
+	 * @param sampleSize the largest number of instances clustered exactly
+	 * @param parallelism the number of worker threads
+	 * @param tracker the tracker of the merges, or null
+	 */
+	SampleClusterer(HAClusterer clusterer, List<HATreeNode> instances, Distance dist, int length, int sampleSize,
+			int parallelism, ProgressTracker tracker) {
+		this.clusterer = clusterer;
+		this.instances = instances.toArray(new HATreeNode[instances.size()]);
+		this.dist = dist;
+		this.length = length;
+		this.sampleSize = sampleSize;
+		this.parallelism = parallelism;
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Runs the clustering
+	 *
+	 * @return the hierarchy
+	 */
+	LinkageMatrix cluster() {
+		int n = instances.length;
+		result = new LinkageMatrix(n);
+		if (n < 2) {
+			return result;
+		}
+		if (tracker != null) {
+			tracker.start();
+		}
+		int[] all = new int[n];
+		for (int i = 0; i < n; i++) {
+			all[i] = i;
+		}
+
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		try {
+			ArrayDeque<Group> stack = new ArrayDeque<Group>();
+			stack.push(new Group(all));
+			while (!stack.isEmpty()) {
+				Group group = stack.peek();
+				if (group.subgroups != null) {
+					/* The subgroups are clustered: merge them as their representatives */
+					int[] roots = new int[group.subgroups.length];
+					for (int k = 0; k < roots.length; k++) {
+						roots[k] = group.subgroups[k].root;
+					}
+					group.root = link(group.representatives, roots, parallelism);
+					group.subgroups = null;
+					stack.pop();
+				} else if (group.members.length <= sampleSize) {
+					group.root = link(group.members, group.members, 1);
+					group.members = null;
+					stack.pop();
+				} else {
+					split(group, pool);
+					for (Group subgroup : group.subgroups) {
+						stack.push(subgroup);
+					}
+				}
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of distances computed by {@link #cluster()}, between
+	 * the instances clustered exactly, from the centroids of their merges, and
+	 * from the assigned instances to their representatives
+	 */
+	long getDistanceEvaluations() {
+		return distanceEvaluations;
+	}
+
+	/**
+	 * Clusters instances exactly, and adds their merges to the result
+	 *
+	 * @param points the indices of the instances
+	 * @param ids the node ids that stand for each instance in the result
+	 * @param threads the number of threads computing the distances
+	 * @return the id of the root of the merges
+	 */
+	private int link(int[] points, int[] ids, int threads) {
+		int m = points.length;
+		if (m == 1) {
+			return ids[0];
+		}
+		HATreeNode[] nodes = new HATreeNode[m];
+		for (int k = 0; k < m; k++) {
+			nodes[k] = instances[points[k]];
+		}
+		List<HATreeNode> leaves = Arrays.asList(nodes);
+		CondensedDistanceMatrix distances = clusterer.computeDistances(leaves, HAClusterer.Storage.HEAP, threads,
+				tracker);
+		LinkageEngine engine = clusterer.createEngine(distances);
+		engine.tracker = tracker;
+		LinkageMatrix local = engine.cluster(leaves);
+		distanceEvaluations += CondensedDistanceMatrix.offset(m) + engine.getDistanceEvaluations();
+
+		/* The merges of the engine come after their children */
+		int[] map = Arrays.copyOf(ids, 2 * m - 1);
+		for (int k = m; k < 2 * m - 1; k++) {
+			map[k] = result.merge(map[local.getLeft(k)], map[local.getRight(k)], local.getHeight(k));
+		}
+		return map[2 * m - 2];
+	}
+
+	/**
+	 * Splits a group into the subgroups of a random sample of it
+	 */
+	private void split(Group group, ForkJoinPool pool) {
+		int[] members = group.members;
+		int m = members.length;
+		for (int k = 0; k < sampleSize; k++) {
+			int r = k + random.nextInt(m - k);
+			int swap = members[k];
+			members[k] = members[r];
+			members[r] = swap;
+		}
+		int[] representatives = Arrays.copyOf(members, sampleSize);
+		int[] others = Arrays.copyOfRange(members, sampleSize, m);
+
+		HATreeNode[] nodes = new HATreeNode[sampleSize];
+		for (int r = 0; r < sampleSize; r++) {
+			nodes[r] = instances[representatives[r]];
+		}
+		DistanceMatrixBuilder sample = new DistanceMatrixBuilder(Arrays.asList(nodes), dist, length, 1);
+		int[] nearest = new int[others.length];
+		distanceEvaluations += (long) others.length * sampleSize;
+		if (pool == null || others.length <= ASSIGN_BLOCK) {
+			assign(sample, others, nearest, 0, others.length);
+		} else {
+			pool.invoke(new AssignTask(sample, others, nearest, 0, others.length));
+		}
+
+		int[] sizes = new int[sampleSize];
+		Arrays.fill(sizes, 1);
+		for (int r : nearest) {
+			sizes[r]++;
+		}
+		Group[] subgroups = new Group[sampleSize];
+		for (int r = 0; r < sampleSize; r++) {
+			subgroups[r] = new Group(new int[sizes[r]]);
+			subgroups[r].members[0] = representatives[r];
+			sizes[r] = 1;
+		}
+		for (int k = 0; k < others.length; k++) {
+			int r = nearest[k];
+			subgroups[r].members[sizes[r]++] = others[k];
+		}
+		group.members = null;
+		group.representatives = representatives;
+		group.subgroups = subgroups;
+	}
+
+	/**
+	 * Finds the nearest representative of a range of instances. The search of
+	 * each instance starts from a different representative, so that equally
+	 * near representatives, as for duplicate instances, share the instances
+	 * instead of taking all of them in the first one.
+	 *
+	 * @param sample the representatives
+	 * @param others the indices of the instances
+	 * @param nearest receives the position in the sample of the nearest
+	 * representative of others[k] at nearest[k]
+	 * @param from the first position in others
+	 * @param to the position after the last one in others
+	 */
+	private void assign(DistanceMatrixBuilder sample, int[] others, int[] nearest, int from, int to) {
+		int count = sampleSize;
+		double[] distances = new double[count];
+		for (int k = from; k < to; k++) {
+			if (tracker != null && (k - from) % ASSIGN_BLOCK == 0) {
+				tracker.checkCancelled();
+			}
+			sample.computeDistances(instances[others[k]], distances);
+			int start = others[k] % count;
+			int best = start;
+			double bestDistance = Double.POSITIVE_INFINITY;
+			for (int c = 0; c < count; c++) {
+				int r = start + c < count ? start + c : start + c - count;
+				if (distances[r] < bestDistance) {
+					bestDistance = distances[r];
+					best = r;
+				}
+			}
+			nearest[k] = best;
+		}
+	}
+
+	/**
+	 * Assigns a range of instances, splitting it in halves down to blocks of
+	 * {@link #ASSIGN_BLOCK}
+	 */
+	@SuppressWarnings("serial")
+	private class AssignTask extends RecursiveAction {
+		private DistanceMatrixBuilder sample;
+		private int[] others;
+		private int[] nearest;
+		private int from;
+		private int to;
+
+		AssignTask(DistanceMatrixBuilder sample, int[] others, int[] nearest, int from, int to) {
+			this.sample = sample;
+			this.others = others;
+			this.nearest = nearest;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= ASSIGN_BLOCK) {
+				assign(sample, others, nearest, from, to);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new AssignTask(sample, others, nearest, from, middle),
+						new AssignTask(sample, others, nearest, middle, to));
+			}
+		}
+	}
+}
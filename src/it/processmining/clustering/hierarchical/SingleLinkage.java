@@ -0,0 +1,32 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Single linkage: the distance between two clusters is the distance between
+ * their closest members
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class SingleLinkage implements Linkage {
+
+	private static SingleLinkage instance = new SingleLinkage();
+
+	public double update(double dik, double djk, double dij, int ni, int nj, int nk) {
+		return Math.min(dik, djk);
+	}
+
+	public boolean isReducible() {
+		return true;
+	}
+
+	public boolean isSquared() {
+		return false;
+	}
+
+	private SingleLinkage() {}
+
+	public static SingleLinkage create() {
+		return instance;
+	}
+
+}
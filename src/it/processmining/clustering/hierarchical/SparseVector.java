@@ -0,0 +1,141 @@
+package it.processmining.clustering.hierarchical;
+
+import java.util.Arrays;
+
+/**
+ * A point in space stored as the sorted indices of its non-zero coordinates and
+ * their values. Memory and distance computations cost O(nnz) instead of
+ * O(length).
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class SparseVector {
+
+	private int length;
+	private int[] indices;
+	private double[] values;
+
+	/**
+	 * Builds a sparse vector. The indices need not be sorted, but must be distinct.
+	 * The arrays are owned by the vector afterwards.
+	 *
+	 * @param length the cardinality of the space vector
+	 * @param indices the indices of the non-zero coordinates
+	 * @param values the values of the non-zero coordinates
+	 */
+	public SparseVector(int length, int[] indices, double[] values) {
+		if (indices.length != values.length) {
+			throw new IllegalArgumentException("Indices and values differ in length");
+		}
+		this.length = length;
+		this.indices = indices;
+		this.values = values;
+		sort();
+		for (int k = 0; k < indices.length; k++) {
+			if (indices[k] < 0 || indices[k] >= length || (k > 0 && indices[k] == indices[k - 1])) {
+				throw new IllegalArgumentException("Invalid or duplicate index: " + indices[k]);
+			}
+		}
+	}
+
+	/**
+	 * @return the cardinality of the space vector
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the number of non-zero coordinates
+	 */
+	public int getNonZeros() {
+		return indices.length;
+	}
+
+	/**
+	 * @return the sorted indices of the non-zero coordinates
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * @return the values of the non-zero coordinates, in the order of the indices
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	/**
+	 * @return the dense representation of this vector
+	 */
+	public double[] toDense() {
+		double[] dense = new double[length];
+		for (int k = 0; k < indices.length; k++) {
+			dense[indices[k]] = values[k];
+		}
+		return dense;
+	}
+
+	/**
+	 * Computes the midpoint of two vectors, in O(nnz)
+	 *
+	 * @param a the first vector
+	 * @param b the second vector
+	 * @return (a + b) / 2
+	 */
+	public static SparseVector midpoint(SparseVector a, SparseVector b) {
+		int[] ia = a.indices, ib = b.indices;
+		double[] va = a.values, vb = b.values;
+		int[] indices = new int[ia.length + ib.length];
+		double[] values = new double[ia.length + ib.length];
+		int i = 0, j = 0, k = 0;
+		while (i < ia.length || j < ib.length) {
+			if (j == ib.length || (i < ia.length && ia[i] < ib[j])) {
+				indices[k] = ia[i];
+				values[k++] = va[i++] / 2;
+			} else if (i == ia.length || ib[j] < ia[i]) {
+				indices[k] = ib[j];
+				values[k++] = vb[j++] / 2;
+			} else {
+				indices[k] = ia[i];
+				values[k++] = (va[i++] + vb[j++]) / 2;
+			}
+		}
+		SparseVector result = new SparseVector(Math.max(a.length, b.length));
+		result.indices = Arrays.copyOf(indices, k);
+		result.values = Arrays.copyOf(values, k);
+		return result;
+	}
+
+	private SparseVector(int length) {
+		this.length = length;
+	}
+
+	/**
+	 * Sorts the coordinates by index, unless they are already sorted
+	 */
+	private void sort() {
+		boolean sorted = true;
+		for (int k = 1; k < indices.length && sorted; k++) {
+			sorted = indices[k - 1] <= indices[k];
+		}
+		if (sorted) {
+			return;
+		}
+		long[] keys = new long[indices.length];
+		for (int k = 0; k < keys.length; k++) {
+			keys[k] = ((long) indices[k] << 32) | k;
+		}
+		Arrays.sort(keys);
+		int[] sortedIndices = new int[keys.length];
+		double[] sortedValues = new double[keys.length];
+		for (int k = 0; k < keys.length; k++) {
+			sortedIndices[k] = (int) (keys[k] >> 32);
+			sortedValues[k] = values[(int) keys[k]];
+		}
+		indices = sortedIndices;
+		values = sortedValues;
+	}
+}
@@ -0,0 +1,33 @@
+package it.processmining.clustering.hierarchical;
+
+/**
+ * Ward linkage: merges the clusters that least increase the within-cluster
+ * variance. Works on squared distances, and is only meaningful for the Euclidean
+ * distance.
+ * 
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class WardLinkage implements Linkage {
+
+	private static WardLinkage instance = new WardLinkage();
+
+	public double update(double dik, double djk, double dij, int ni, int nj, int nk) {
+		return ((ni + nk) * dik + (nj + nk) * djk - nk * dij) / (ni + nj + nk);
+	}
+
+	public boolean isReducible() {
+		return true;
+	}
+
+	public boolean isSquared() {
+		return true;
+	}
+
+	private WardLinkage() {}
+
+	public static WardLinkage create() {
+		return instance;
+	}
+
+}
@@ -0,0 +1,57 @@
+package it.processmining.clustering.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A whole clustering, from the instances to the hierarchy
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+@Name("it.processmining.clustering.Clustering")
+@Label("Clustering")
+@Description("Hierarchical clustering of a set of instances")
+@Category({ "RoleCluster", "Clustering" })
+public class ClusteringEvent extends StageEvent {
+
+	@Label("Instances")
+	private int instances;
+
+	@Label("Dimensions")
+	private int dimensions;
+
+	@Label("Linkage")
+	@Description("The linkage, or Centroid when distances are recomputed from centroids")
+	private String linkage;
+
+	@Label("Sample Size")
+	@Description("The largest number of instances clustered exactly, or 0 if the clustering is exact")
+	private int sampleSize;
+
+	@Label("Distance Evaluations")
+	@Description("Distances computed from the vectors, over all the phases")
+	private long distanceEvaluations;
+
+	/**
+	 * Commits the event, if it is enabled
+	 *
+	 * @param instances the number of instances
+	 * @param dimensions the number of dimensions of the instances
+	 * @param linkage the name of the linkage
+	 * @param sampleSize the sample size, or 0
+	 * @param distanceEvaluations the number of distances computed
+	 */
+	public void finish(int instances, int dimensions, String linkage, int sampleSize, long distanceEvaluations) {
+		if (stop()) {
+			this.instances = instances;
+			this.dimensions = dimensions;
+			this.linkage = linkage;
+			this.sampleSize = sampleSize;
+			this.distanceEvaluations = distanceEvaluations;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package it.processmining.clustering.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A cut of a hierarchy into groups
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+@Name("it.processmining.clustering.Cut")
+@Label("Cut")
+@Description("Groups of a hierarchy cut at a threshold")
+@Category({ "RoleCluster", "Clustering" })
+public class CutEvent extends StageEvent {
+
+	@Label("Instances")
+	private int instances;
+
+	@Label("Threshold")
+	private double threshold;
+
+	@Label("Groups")
+	private int groups;
+
+	@Label("Index Built")
+	@Description("Whether the cut index was built by this cut")
+	private boolean indexBuilt;
+
+	/**
+	 * Commits the event, if it is enabled
+	 *
+	 * @param instances the number of instances
+	 * @param threshold the threshold of the cut
+	 * @param groups the number of groups
+	 * @param indexBuilt whether the cut built the index
+	 */
+	public void finish(int instances, double threshold, int groups, boolean indexBuilt) {
+		if (stop()) {
+			this.instances = instances;
+			this.threshold = threshold;
+			this.groups = groups;
+			this.indexBuilt = indexBuilt;
+			commit();
+		}
+	}
+}
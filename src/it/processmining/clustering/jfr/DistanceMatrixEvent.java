@@ -0,0 +1,60 @@
+package it.processmining.clustering.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The computation of the distances between every pair of instances
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+@Name("it.processmining.clustering.DistanceMatrix")
+@Label("Distance Matrix")
+@Description("Pairwise distances between the instances of a clustering")
+@Category({ "RoleCluster", "Clustering" })
+public class DistanceMatrixEvent extends StageEvent {
+
+	@Label("Instances")
+	private int instances;
+
+	@Label("Dimensions")
+	private int dimensions;
+
+	@Label("Distance Evaluations")
+	private long distanceEvaluations;
+
+	@Label("Storage")
+	private String storage;
+
+	@Label("Precision")
+	private String precision;
+
+	@Label("Threads")
+	private int threads;
+
+	/**
+	 * Commits the event, if it is enabled
+	 *
+	 * @param instances the number of instances
+	 * @param dimensions the number of dimensions of the instances
+	 * @param distanceEvaluations the number of distances computed
+	 * @param storage where the matrix is stored
+	 * @param precision the precision of the matrix
+	 * @param threads the number of worker threads
+	 */
+	public void finish(int instances, int dimensions, long distanceEvaluations, String storage, String precision,
+			int threads) {
+		if (stop()) {
+			this.instances = instances;
+			this.dimensions = dimensions;
+			this.distanceEvaluations = distanceEvaluations;
+			this.storage = storage;
+			this.precision = precision;
+			this.threads = threads;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package it.processmining.clustering.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The merge phase of a clustering, once the distances are computed
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+@Name("it.processmining.clustering.Merge")
+@Label("Merge Phase")
+@Description("Merges of a clustering, from the distance matrix to the hierarchy")
+@Category({ "RoleCluster", "Clustering" })
+public class MergeEvent extends StageEvent {
+
+	@Label("Instances")
+	private int instances;
+
+	@Label("Merges")
+	private int merges;
+
+	@Label("Engine")
+	private String engine;
+
+	@Label("Distance Evaluations")
+	@Description("Distances recomputed from centroids; linkages update the distances without computing any")
+	private long distanceEvaluations;
+
+	/**
+	 * Commits the event, if it is enabled
+	 *
+	 * @param instances the number of instances
+	 * @param merges the number of merges
+	 * @param engine the name of the engine
+	 * @param distanceEvaluations the number of distances computed
+	 */
+	public void finish(int instances, int merges, String engine, long distanceEvaluations) {
+		if (stop()) {
+			this.instances = instances;
+			this.merges = merges;
+			this.engine = engine;
+			this.distanceEvaluations = distanceEvaluations;
+			commit();
+		}
+	}
+}
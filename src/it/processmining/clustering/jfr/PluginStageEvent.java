@@ -0,0 +1,52 @@
+package it.processmining.clustering.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A step of a ProM plugin, such as the scan of the log or the conversion of a
+ * net, whose caption is shown in the progress bar
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+@Name("it.processmining.clustering.PluginStage")
+@Label("Plugin Stage")
+@Description("A step of a RoleCluster plugin")
+@Category({ "RoleCluster", "Plugin" })
+public class PluginStageEvent extends StageEvent {
+
+	@Label("Plugin")
+	private String plugin;
+
+	@Label("Stage")
+	private String stage;
+
+	@Label("Items")
+	@Description("What the stage went through: traces, activities, nodes or instances")
+	private int items;
+
+	@Label("Dimensions")
+	@Description("The number of resources, for the stages that build or cut profiles, or 0")
+	private int dimensions;
+
+	/**
+	 * Commits the event, if it is enabled
+	 *
+	 * @param plugin the name of the plugin
+	 * @param stage the name of the stage
+	 * @param items the number of items processed
+	 * @param dimensions the number of dimensions of the profiles, or 0
+	 */
+	public void finish(String plugin, String stage, int items, int dimensions) {
+		if (stop()) {
+			this.plugin = plugin;
+			this.stage = stage;
+			this.items = items;
+			this.dimensions = dimensions;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package it.processmining.clustering.jfr;
+
+import java.lang.management.ManagementFactory;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Base class of the Java Flight Recorder events that time the stages of the
+ * pipeline. A stage is enclosed between {@link #start()} and the
+ * <code>finish</code> method of the event, which records what the stage worked
+ * on and commits the event. When the event is enabled, they also measure the
+ * bytes allocated by the thread running the stage; when no recording asks for
+ * it, they cost a few branches and nothing is measured or committed.
+ *
+ * <pre>
+ * ClusteringEvent event = new ClusteringEvent();
+ * event.start();
+ * ...
+ * event.finish(instances, dimensions, linkage, sampleSize, evaluations);
+ * </pre>
+ *
+ * Events of stages that throw are dropped.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public abstract class StageEvent extends Event {
+
+	@Label("Allocated")
+	@Description("Bytes allocated by the thread running the stage, not by its worker threads, or -1 if the JVM cannot tell")
+	@DataAmount
+	protected long allocatedBytes;
+
+	private transient long allocationStart;
+
+	/**
+	 * Starts timing the stage
+	 */
+	public void start() {
+		begin();
+		if (isEnabled()) {
+			allocationStart = currentAllocatedBytes();
+		}
+	}
+
+	/**
+	 * Stops timing the stage
+	 *
+	 * @return whether the event is to be committed, once the subclass has set
+	 * its fields
+	 */
+	protected boolean stop() {
+		end();
+		if (!shouldCommit()) {
+			return false;
+		}
+		long allocated = currentAllocatedBytes();
+		allocatedBytes = allocated < 0 || allocationStart < 0 ? -1 : allocated - allocationStart;
+		return true;
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or -1 if the JVM
+	 * does not track them
+	 */
+	private static long currentAllocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -7,17 +7,25 @@ import java.awt.Color;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.text.DecimalFormat;
-import java.util.Vector;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
 
 import org.apache.batik.dom.GenericDOMImplementation;
 import org.apache.batik.svggen.SVGGraphics2D;
@@ -29,6 +37,14 @@ import org.w3c.dom.Document;
 /**
  * This is the widget for the representation of a dendrogram
  * 
+ * The background, the matrix and the dendrogram are rendered into an off-screen
+ * image, which is rendered again only when the view is panned or zoomed, the
+ * widget is resized or the cluster changes. The hover overlays are painted over
+ * the image, and moving them repaints only the area they cover.
+ * 
+ * The image is rendered on a background thread, which reads the cluster: the
+ * cluster must not be modified while the widget shows it.
+ * 
  * @author Andrea Burattin
  */
 @SuppressWarnings("serial")
@@ -36,8 +52,19 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 
 	// GRAPHIC CONFIGURATION
 	// ---------------------
-	// the size of a block of the matrix
+	// the initial size of a block of the matrix
 	public static int matrixBlockSize = 40;
+	// the zoom range: above the readable size the wheel zooms by pixels, below
+	// it geometrically, until the whole matrix fits in the widget
+	public static final int matrixMinReadableBlockSize = 20;
+	public static final int matrixMaxBlockSize = 200;
+	// the cells sampled on each side of a block of cells smaller than a pixel,
+	// when its zoom level has too many blocks to be cached
+	public static final int matrixAggregationSamples = 8;
+	// the largest number of blocks of a cached zoom level
+	public static final int matrixMaxCachedBlocks = 2048 * 2048;
+	// the smallest size of a block of the preview, shown while the matrix is rendered
+	public static final int matrixPreviewBlockSize = 8;
 	// the size of a circle of the dendrogram
 	public static final int dendroCircleSize = 5;
 	// maximum length of connectors
@@ -50,6 +77,7 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	public static final Color labelColor = new Color(172, 229, 254, (int) (255 * (.8)));
 	public static final Color dendroColor = Color.WHITE;
 	public static final Color matrixBrightestColor = Color.RED;
+	// the color of each measure of the matrix, by alpha of the brightest color
 	public static final Color infoBoxBackground = new Color(.05f, .05f, .05f, .9f);
 	public static final Color infoBoxLines = new Color(.5f, .5f, .5f, .5f);
 	public static final Color infoBoxLabels = new Color(1f, 1f, 1f, 0.5f);
@@ -60,35 +88,81 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	public static final Color infoDendrogramLabels = new Color(.6f, .6f, .6f, 1f);
 	public static final float infoDendrogramFontSize = 16f;
 
+	// renders the scenes of the widgets, one at a time, off the event dispatch thread
+	private static final ExecutorService renderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "Dendrogram renderer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * How the distances of a block of cells are shown, when the cells are
+	 * smaller than a pixel
+	 */
+	public enum Aggregation {
+		/** The smallest distance of the block, its most similar pair */
+		MIN,
+		/** The mean distance of the block */
+		MEAN
+	}
+
 	// internal elements
 	private HACluster cluster;
+	private Aggregation aggregation = Aggregation.MEAN;
+	// the aggregated distances of the blocks of the zoom levels, by cells per
+	// side, filled by the scenes on the renderer thread and copied by the
+	// exports to SVG
+	private ConcurrentHashMap<Integer, float[]> aggregates = new ConcurrentHashMap<Integer, float[]>();
 	
 	private int numberOfElements;
-	private Vector<Integer> coordinates;
 	private FontMetrics fm;
 
-	private int currentX;
-	private int currentY;
-
-	private int offsetX = 10;
-	private int offsetY = 10;
-
-	private int spaceForLabelX = 200;
-	private int spaceForLabelY = 0;
+	// the layout of the dendrogram, computed once per cluster: the names and
+	// the ids of the instances by position in the matrix, and their positions by id
+	private String[] leafNames;
+	private int[] leafIds;
+	private int[] leafPositions;
+	// the nodes in post-order: the post-order indices of the children of each
+	// merge, or -1 for leaves, the position of each leaf, or -1 for merges, the
+	// x of each node from the east border of the matrix and the distance of
+	// each merge, relative to the root
+	private int[] nodeLeft;
+	private int[] nodeRight;
+	private int[] nodeLeaf;
+	private int[] nodeX;
+	private double[] nodeDistance;
+	// the y of each node from the north border of the matrix, computed once per zoom
+	private int[] nodeY;
+
+	// the zoom and the panning of the matrix
+	private Geometry geometry = new Geometry(0, matrixBlockSize, 10, 10, 200, 0);
 
 	DecimalFormat df = new DecimalFormat("#.###");
 
 	// mouse listener indexes
 	private int mouseMovingX = -1;
 	private int mouseMovingY = -1;
-	private int matrixBeginX = offsetX + spaceForLabelX;
-	private int matrixBeginY = offsetY + spaceForLabelY;
+	private int matrixBeginX = geometry.getMatrixBorderW();
+	private int matrixBeginY = geometry.getMatrixBorderN();
 	private boolean mouseOverMatrix = false;
 	private boolean mouseOverDendrogram = false;
 	private int motionPixels = 0;
 	
 	private double currentValue;
 
+	// the scene of the current state is requested
+	private boolean sceneValid = false;
+	// the last scene requested, and the last one rendered with its image
+	private Scene requested;
+	private Scene shown;
+	private BufferedImage sceneImage;
+	// why the last scene requested could not be rendered, if it failed
+	private Throwable renderFailure;
+	// the area covered by the overlays in the last paint, if any
+	private Rectangle overlayBounds;
+
 	/**
 	 * Widget constructor
 	 * 
@@ -100,20 +174,59 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	public DendrogramWidget(HACluster cluster) {
 		this.cluster = cluster;
 		this.numberOfElements = cluster.getRootNode().getSize();
-		coordinates = new Vector<Integer>();
+		geometry = geometry.withElements(numberOfElements);
+		layoutTree();
 
 		addMouseListener(this);
 		addMouseMotionListener(this);
 		addMouseWheelListener(this);
 		
 
-		offsetX = (getWidth() / 2) - (spaceForLabelX / 2) - (matrixBlockSize * numberOfElements / 2)
-				- (dendroWidth / 2);
-		offsetY = (getHeight() / 2) - (spaceForLabelY / 2) - (matrixBlockSize * numberOfElements / 2);
-		
-		System.err.println("Offest Y : " + offsetY);
+		geometry = geometry.withOffset((getWidth() / 2) - (geometry.spaceForLabelX / 2)
+				- (geometry.blockOffset(numberOfElements) / 2) - (dendroWidth / 2), (getHeight() / 2)
+				- (geometry.spaceForLabelY / 2) - (geometry.blockOffset(numberOfElements) / 2));
 	}
 	
+	/**
+	 * Sets the cluster to represent. The cluster is read in the background
+	 * while the widget renders it, so it must not be modified, e.g. by
+	 * inserting or updating its instances, as long as the widget shows it.
+	 * 
+	 * @param cluster
+	 *            the cluster
+	 */
+	public void setCluster(HACluster cluster) {
+		this.cluster = cluster;
+		this.numberOfElements = cluster.getRootNode().getSize();
+		geometry = geometry.withElements(numberOfElements);
+		layoutTree();
+		aggregates = new ConcurrentHashMap<Integer, float[]>();
+		mouseOverMatrix = false;
+		overlayBounds = null;
+		sceneValid = false;
+		repaint();
+	}
+
+	/**
+	 * @return how blocks of cells smaller than a pixel are shown
+	 */
+	public Aggregation getAggregation() {
+		return aggregation;
+	}
+
+	/**
+	 * Sets how blocks of cells smaller than a pixel are shown
+	 * 
+	 * @param aggregation
+	 *            the distance shown for each block
+	 */
+	public void setAggregation(Aggregation aggregation) {
+		this.aggregation = aggregation;
+		aggregates = new ConcurrentHashMap<Integer, float[]>();
+		sceneValid = false;
+		repaint();
+	}
+
 	/**
 	 * @return the current cut value
 	 */
@@ -122,29 +235,80 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	}
 
 	/**
-	 * Method for getting a new available X coordinates
-	 * 
-	 * @return
+	 * Computes the layout of the dendrogram that does not depend on the zoom:
+	 * the order of the leaves, the children and the x of the nodes. The tree is
+	 * walked in post-order with an explicit stack, so that chained hierarchies
+	 * as deep as the number of instances do not overflow the call stack.
 	 */
-	public int askForX() {
-		return currentX;
+	private void layoutTree() {
+		int nodes = 2 * numberOfElements - 1;
+		leafNames = new String[numberOfElements];
+		leafIds = new int[numberOfElements];
+		nodeLeft = new int[nodes];
+		nodeRight = new int[nodes];
+		nodeLeaf = new int[nodes];
+		nodeX = new int[nodes];
+		nodeDistance = new double[nodes];
+		double rootDistance = cluster.getRootNode().getMaxDistance();
+
+		ArrayDeque<HATreeNode> stack = new ArrayDeque<HATreeNode>();
+		// the post-order indices of the subtrees walked, whose parent is not yet
+		int[] walked = new int[nodes];
+		int walkedCount = 0;
+		int node = 0, leaf = 0, maxId = 0;
+		HATreeNode last = null;
+		stack.push(cluster.getRootNode());
+		while (!stack.isEmpty()) {
+			HATreeNode top = stack.peek();
+			if (top.isLeaf()) {
+				stack.pop();
+				leafNames[leaf] = top.getName();
+				leafIds[leaf] = top.getId();
+				maxId = Math.max(maxId, top.getId());
+				nodeLeft[node] = -1;
+				nodeRight[node] = -1;
+				nodeLeaf[node] = leaf++;
+				walked[walkedCount++] = node++;
+				last = top;
+			} else if (last == top.getRight()) {
+				// both children are walked, their indices are on top of the stack
+				stack.pop();
+				nodeRight[node] = walked[--walkedCount];
+				nodeLeft[node] = walked[--walkedCount];
+				nodeLeaf[node] = -1;
+				nodeDistance[node] = top.getMaxDistance() / rootDistance;
+				nodeX[node] = (int) (dendroWidth * nodeDistance[node]);
+				walked[walkedCount++] = node++;
+				last = top;
+			} else if (last == top.getLeft()) {
+				stack.push(top.getRight());
+			} else {
+				stack.push(top.getLeft());
+			}
+		}
+
+		leafPositions = new int[maxId + 1];
+		Arrays.fill(leafPositions, -1);
+		for (int i = 0; i < numberOfElements; i++) {
+			leafPositions[leafIds[i]] = i;
+		}
+		layoutRows();
 	}
 
 	/**
-	 * Method for getting a new available Y coordinate
-	 * 
-	 * @param c
-	 * @return
+	 * Computes the y of the nodes of the dendrogram at the current zoom: the
+	 * center of its row for a leaf, and the middle of its children for a merge
 	 */
-	public int askForY(HATreeNode c) {
-		int index = c.getId();
-		if (!coordinates.contains(index)) {
-			coordinates.add(index);
+	private void layoutRows() {
+		nodeY = new int[nodeLeaf.length];
+		for (int k = 0; k < nodeLeaf.length; k++) {
+			if (nodeLeaf[k] >= 0) {
+				nodeY[k] = geometry.blockCenter(nodeLeaf[k]);
+			} else {
+				int left = nodeY[nodeLeft[k]], right = nodeY[nodeRight[k]];
+				nodeY[k] = Math.min(left, right) + Math.abs(left - right) / 2;
+			}
 		}
-
-		int oldY = currentY;
-		currentY += matrixBlockSize;
-		return oldY;
 	}
 
 	/**
@@ -153,7 +317,7 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	 * @return
 	 */
 	public int getMatrixBorderN() {
-		return offsetY + spaceForLabelY;
+		return geometry.getMatrixBorderN();
 	}
 
 	/**
@@ -162,7 +326,7 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	 * @return
 	 */
 	public int getMatrixBorderE() {
-		return offsetX + spaceForLabelX + (numberOfElements * matrixBlockSize);
+		return geometry.getMatrixBorderE();
 	}
 
 	/**
@@ -171,7 +335,7 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	 * @return
 	 */
 	public int getMatrixBorderS() {
-		return offsetY + spaceForLabelY + (numberOfElements * matrixBlockSize);
+		return geometry.getMatrixBorderS();
 	}
 
 	/**
@@ -180,11 +344,13 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	 * @return
 	 */
 	public int getMatrixBorderW() {
-		return offsetX + spaceForLabelX;
+		return geometry.getMatrixBorderW();
 	}
 
 	/**
-	 * Method to save the given dendrogram representation as an SVG file
+	 * Method to save the given dendrogram representation as an SVG file. The
+	 * scene is painted on the calling thread, without waiting for the
+	 * renderings queued in the background.
 	 * 
 	 * @param filename
 	 *            where to save the image
@@ -194,7 +360,13 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 		String svgNS = "http://www.w3.org/2000/svg";
 		Document document = domImpl.createDocument(svgNS, "svg", null);
 		SVGGraphics2D svgGenerator = new SVGGraphics2D(document);
-		paintComponent(svgGenerator);
+		if (fm == null) {
+			fm = svgGenerator.getFontMetrics();
+		}
+		// the renderer may be filling the cached aggregates: fill a copy instead
+		Scene scene = new Scene(this, new ConcurrentHashMap<Integer, float[]>(aggregates), getWidth(), getHeight(), 1);
+		scene.paint(svgGenerator, false);
+		paintOverlays(svgGenerator);
 
 		boolean useCSS = true;
 		try {
@@ -210,14 +382,142 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 			fm = g.getFontMetrics();
 		}
 
-		currentX = offsetX + spaceForLabelX + matrixBlockSize * numberOfElements;
-		currentY = offsetY + spaceForLabelY + matrixBlockSize / 2;
+		// render the scene at the resolution of the device, for scaled displays
+		double scale = ((Graphics2D) g).getTransform().getScaleX();
+		int width = Math.max((int) Math.ceil(getWidth() * scale), 1);
+		int height = Math.max((int) Math.ceil(getHeight() * scale), 1);
+		if (!sceneValid || requested.deviceWidth != width || requested.deviceHeight != height) {
+			requestScene(width, height, scale);
+		}
 
-		((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		// until the scene is rendered, show the last one, following the panning
+		if (shown != requested) {
+			Scene.drawBackground(g, getWidth(), getHeight());
+		}
+		if (shown != null) {
+			boolean panned = shown.geometry.blockSize == geometry.blockSize;
+			int moveX = panned ? geometry.offsetX - shown.geometry.offsetX : 0;
+			int moveY = panned ? geometry.offsetY - shown.geometry.offsetY : 0;
+			g.drawImage(sceneImage, moveX, moveY, shown.width, shown.height, null);
+		}
 
-		drawBackground(g, getWidth(), getHeight());
-		drawDendrogram(g);
-		drawMatrix(g);
+		paintOverlays(g);
+
+		if (renderFailure != null) {
+			drawFailure(g);
+		}
+
+		g.dispose();
+
+	}
+
+	/**
+	 * Requests the rendering of the scene of the current state, cancelling the
+	 * previous one. The scene is rendered in the background, first as a coarse
+	 * preview if it has one, and shown as each rendering is ready.
+	 * 
+	 * @param width
+	 *            the width of the image, in device pixels
+	 * @param height
+	 *            the height of the image, in device pixels
+	 * @param scale
+	 *            the device pixels per pixel of the widget
+	 */
+	private void requestScene(int width, int height, double scale) {
+		if (requested != null) {
+			requested.cancel();
+		}
+		final Scene scene = new Scene(this, aggregates, width, height, scale);
+		requested = scene;
+		sceneValid = true;
+		renderFailure = null;
+		renderer.submit(new Runnable() {
+			public void run() {
+				try {
+					if (scene.hasPreview()) {
+						showScene(scene, scene.render(true));
+					}
+					showScene(scene, scene.render(false));
+				} catch (Throwable e) {
+					// nothing waits for the future, so the widget reports the failure
+					showFailure(scene, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reports that a scene could not be rendered, on the event dispatch
+	 * thread, unless a newer scene was requested in the meanwhile. The last
+	 * rendering stays shown, under the error message.
+	 * 
+	 * @param scene
+	 *            the scene
+	 * @param failure
+	 *            why the rendering failed
+	 */
+	private void showFailure(final Scene scene, final Throwable failure) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (scene == requested) {
+					renderFailure = failure;
+					repaint();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Paints the message of the last rendering failure, in an info box on
+	 * the top left corner
+	 * 
+	 * @param g
+	 */
+	private void drawFailure(Graphics g) {
+		String message = renderFailure.getMessage() == null ? renderFailure.getClass().getSimpleName()
+				: renderFailure.getMessage();
+		String text = "Unable to draw the dendrogram: " + message;
+		int boxWidth = g.getFontMetrics().stringWidth(text) + 20;
+
+		g.setColor(infoBoxBackground);
+		g.fillRoundRect(10, 10, boxWidth, 24, 10, 10);
+		g.setColor(infoBoxLines);
+		g.drawRoundRect(10, 10, boxWidth, 24, 10, 10);
+		g.setColor(matrixBrightestColor);
+		g.drawString(text, 20, 27);
+	}
+
+	/**
+	 * Shows a rendering of a scene, on the event dispatch thread, unless a
+	 * newer scene was requested in the meanwhile
+	 * 
+	 * @param scene
+	 *            the scene
+	 * @param image
+	 *            the rendering, or null if the scene was cancelled
+	 */
+	private void showScene(final Scene scene, final BufferedImage image) {
+		if (image == null) {
+			return;
+		}
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (scene == requested) {
+					shown = scene;
+					sceneImage = image;
+					repaint();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Paints the overlays of the element under the mouse
+	 * 
+	 * @param g
+	 */
+	private void paintOverlays(Graphics g) {
+		((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
 		if (mouseOverDendrogram) {
 			drawOverlayDendrogram(g);
@@ -226,9 +526,37 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 		if (mouseOverMatrix) {
 			drawOverlayMatrix(g);
 		}
+	}
 
-		g.dispose();
-
+	/**
+	 * Computes the area covered by the overlays, from the mouse position
+	 * 
+	 * @return the area, or null if no overlay is shown
+	 */
+	private Rectangle getOverlayBounds() {
+		Rectangle bounds = null;
+		if (mouseOverDendrogram) {
+			String valueString = df.format((double) (mouseMovingX - getMatrixBorderE()) / dendroWidth);
+			FontMetrics valueMetrics = getFontMetrics(fm.getFont().deriveFont(infoDendrogramFontSize));
+			int boxWidth = Math.max(fm.stringWidth(valueString) + 30, valueMetrics.stringWidth(valueString) + 10);
+			bounds = new Rectangle(mouseMovingX - 2, getMatrixBorderN() - 32, boxWidth + 5, getMatrixBorderS()
+					- getMatrixBorderN() + 35);
+		}
+		if (mouseOverMatrix) {
+			int xCoord = geometry.blockAt(mouseMovingX - matrixBeginX);
+			int yCoord = geometry.blockAt(mouseMovingY - matrixBeginY);
+			int low = Math.min(xCoord, yCoord);
+			int high = Math.max(xCoord, yCoord);
+			int infoBoxWidth = getInfoBoxWidth(xCoord, yCoord);
+			int x1 = Math.max(matrixBeginX + geometry.blockCenter(high) + 6,
+					(int) (matrixBeginX + geometry.blockOffset(xCoord) + (geometry.blockSize * .75)) + infoBoxWidth + 20);
+			int y0 = matrixBeginY + geometry.blockCenter(low) - 6;
+			int y1 = Math.max(matrixBeginY + geometry.blockCenter(high) + 6,
+					(int) (matrixBeginY + geometry.blockOffset(yCoord) + (geometry.blockSize * .75)) + 38);
+			Rectangle matrix = new Rectangle(matrixBeginX - 2, y0 - 2, x1 - matrixBeginX + 5, y1 - y0 + 5);
+			bounds = bounds == null ? matrix : bounds.union(matrix);
+		}
+		return bounds;
 	}
 
 	/**
@@ -259,220 +587,75 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	 * @param g
 	 */
 	private void drawOverlayMatrix(Graphics g) {
-		int xCoord = (mouseMovingX - matrixBeginX) / matrixBlockSize;
-		int yCoord = (mouseMovingY - matrixBeginY) / matrixBlockSize;
+		int xCoord = geometry.blockAt(mouseMovingX - matrixBeginX);
+		int yCoord = geometry.blockAt(mouseMovingY - matrixBeginY);
 
 		g.setColor(infoBoxLines);
 		// oval on the cell
-		g.drawOval(matrixBeginX + (xCoord * matrixBlockSize) + (matrixBlockSize / 2) - 5, matrixBeginY
-				+ (yCoord * matrixBlockSize) + (matrixBlockSize / 2) - 5, 10, 10);
+		g.drawOval(matrixBeginX + geometry.blockCenter(xCoord) - 5, matrixBeginY + geometry.blockCenter(yCoord) - 5, 10, 10);
 		// connector from the matrix border to the oval
-		g.drawLine(matrixBeginX, matrixBeginY + (yCoord * matrixBlockSize) + (matrixBlockSize / 2), matrixBeginX
-				+ (xCoord * matrixBlockSize) + (matrixBlockSize / 2) - 6, matrixBeginY + (yCoord * matrixBlockSize)
-				+ (matrixBlockSize / 2));
+		g.drawLine(matrixBeginX, matrixBeginY + geometry.blockCenter(yCoord), matrixBeginX + geometry.blockCenter(xCoord) - 6,
+				matrixBeginY + geometry.blockCenter(yCoord));
 		// connector from the oval to the infobox
-		g.drawLine(matrixBeginX + (xCoord * matrixBlockSize) + (matrixBlockSize / 2) + 4, matrixBeginY
-				+ (yCoord * matrixBlockSize) + (matrixBlockSize / 2) + 4, (int) (matrixBeginX
-				+ (xCoord * matrixBlockSize) + (matrixBlockSize * .75) + 2), (int) (matrixBeginY
-				+ (yCoord * matrixBlockSize) + (matrixBlockSize * .75) + 2));
+		g.drawLine(matrixBeginX + geometry.blockCenter(xCoord) + 4, matrixBeginY + geometry.blockCenter(yCoord) + 4,
+				(int) (matrixBeginX + geometry.blockOffset(xCoord) + (geometry.blockSize * .75) + 2),
+				(int) (matrixBeginY + geometry.blockOffset(yCoord) + (geometry.blockSize * .75) + 2));
 
 		if (xCoord != yCoord) {
 			// second oval
-			g.drawOval(matrixBeginX + (yCoord * matrixBlockSize) + (matrixBlockSize / 2) - 5, matrixBeginY
-					+ (xCoord * matrixBlockSize) + (matrixBlockSize / 2) - 5, 10, 10);
+			g.drawOval(matrixBeginX + geometry.blockCenter(yCoord) - 5, matrixBeginY + geometry.blockCenter(xCoord) - 5, 10, 10);
 			// connector between the two ovals
 			int mult = (xCoord > yCoord) ? -1 : 1;
-			g.drawLine(matrixBeginX + (xCoord * matrixBlockSize) + (matrixBlockSize / 2) + (4 * mult), matrixBeginY
-					+ (yCoord * matrixBlockSize) + (matrixBlockSize / 2) - (4 * mult), matrixBeginX
-					+ (yCoord * matrixBlockSize) + (matrixBlockSize / 2) - (4 * mult), matrixBeginY
-					+ (xCoord * matrixBlockSize) + (matrixBlockSize / 2) + (4 * mult));
+			g.drawLine(matrixBeginX + geometry.blockCenter(xCoord) + (4 * mult), matrixBeginY
+					+ geometry.blockCenter(yCoord) - (4 * mult), matrixBeginX + geometry.blockCenter(yCoord) - (4 * mult),
+					matrixBeginY + geometry.blockCenter(xCoord) + (4 * mult));
 			// connector from the second oval to the matrix border
-			g.drawLine(matrixBeginX, matrixBeginY + (xCoord * matrixBlockSize) + (matrixBlockSize / 2), matrixBeginX
-					+ (yCoord * matrixBlockSize) + (matrixBlockSize / 2) - 6, matrixBeginY + (xCoord * matrixBlockSize)
-					+ (matrixBlockSize / 2));
+			g.drawLine(matrixBeginX, matrixBeginY + geometry.blockCenter(xCoord), matrixBeginX + geometry.blockCenter(yCoord) - 6,
+					matrixBeginY + geometry.blockCenter(xCoord));
 		}
 
-		int infoBoxOffset = (xCoord * matrixBlockSize);
-		Double dis = cluster.getNormalizedDistance(coordinates.get(xCoord), coordinates.get(yCoord));
-		String textLine1 = "Similarity: " + df.format(1 - dis);
-		String textLine2 = "Distance: " + df.format(dis);
-		int infoBoxWidth = fm.stringWidth(textLine1);
-		if (fm.stringWidth(textLine2) > infoBoxWidth)
-			infoBoxWidth = fm.stringWidth(textLine2);
+		int infoBoxOffset = geometry.blockOffset(xCoord);
+		String[] textLines = getInfoBoxLines(xCoord, yCoord);
+		String textLine1 = textLines[0];
+		String textLine2 = textLines[1];
+		int infoBoxWidth = getInfoBoxWidth(xCoord, yCoord);
 
 		// the actual info box
 		g.setColor(infoBoxBackground);
-		g.fillRoundRect((int) (matrixBeginX + infoBoxOffset + (matrixBlockSize * .75)), (int) (matrixBeginY
-				+ (yCoord * matrixBlockSize) + (matrixBlockSize * .75)), infoBoxWidth + 20, 38, 10, 10);
+		g.fillRoundRect((int) (matrixBeginX + infoBoxOffset + (geometry.blockSize * .75)), (int) (matrixBeginY
+				+ geometry.blockOffset(yCoord) + (geometry.blockSize * .75)), infoBoxWidth + 20, 38, 10, 10);
 		g.setColor(infoBoxLines);
-		g.drawRoundRect((int) (matrixBeginX + infoBoxOffset + (matrixBlockSize * .75)), (int) (matrixBeginY
-				+ (yCoord * matrixBlockSize) + (matrixBlockSize * .75)), infoBoxWidth + 20, 38, 10, 10);
+		g.drawRoundRect((int) (matrixBeginX + infoBoxOffset + (geometry.blockSize * .75)), (int) (matrixBeginY
+				+ geometry.blockOffset(yCoord) + (geometry.blockSize * .75)), infoBoxWidth + 20, 38, 10, 10);
 
 		// texts inside the info box
 		g.setColor(infoBoxLabels);
-		g.drawString(textLine1, (int) (matrixBeginX + infoBoxOffset + (matrixBlockSize * .75) + 10),
-				(int) (matrixBeginY + (yCoord * matrixBlockSize) + (matrixBlockSize * .75) + 17));
-		g.drawString(textLine2, (int) (matrixBeginX + infoBoxOffset + (matrixBlockSize * .75) + 10),
-				(int) (matrixBeginY + (yCoord * matrixBlockSize) + (matrixBlockSize * .75) + 32));
+		g.drawString(textLine1, (int) (matrixBeginX + infoBoxOffset + (geometry.blockSize * .75) + 10),
+				(int) (matrixBeginY + geometry.blockOffset(yCoord) + (geometry.blockSize * .75) + 17));
+		g.drawString(textLine2, (int) (matrixBeginX + infoBoxOffset + (geometry.blockSize * .75) + 10),
+				(int) (matrixBeginY + geometry.blockOffset(yCoord) + (geometry.blockSize * .75) + 32));
 	}
 
 	/**
 	 * 
-	 * @param g
+	 * @param xCoord
+	 * @param yCoord
+	 * @return the lines of the info box of a cell of the matrix
 	 */
-	private void drawMatrix(Graphics g) {
-		// draw the background
-		g.setColor(background);
-		g.fillRect(0, 0, spaceForLabelX + offsetX + numberOfElements * matrixBlockSize, spaceForLabelY + offsetY
-				+ numberOfElements * matrixBlockSize + 20);
-
-		// draw the matrix
-		int x = 0;
-		int y = 0;
-		for (int a = 0; a < numberOfElements; a++) {
-			y = 0;
-			for (int b = 0; b < numberOfElements; b++) {
-				Double distanceValue = cluster.getNormalizedDistance(coordinates.get(a), coordinates.get(b));
-				g.setColor(measureColor(distanceValue));
-				g.fillRect(getMatrixBorderW() + x, getMatrixBorderN() + y, matrixBlockSize, matrixBlockSize);
-				y += matrixBlockSize;
-			}
-			x += matrixBlockSize;
-		}
-
-		// draw the labels
-		g.setColor(new Color(172, 229, 254, (int) (255 * (.8))));
-		for (int i = 0; i < numberOfElements; i++) {
-			String s = cluster.getInstance(coordinates.get(i)).getName();
-			int internalOffsetX = spaceForLabelX - fm.stringWidth(s) - 5;
-			// horizontal labels
-			g.drawString(s, offsetX + internalOffsetX,
-					offsetY + spaceForLabelY + (matrixBlockSize / 2) + 5 + (i * matrixBlockSize));
-			// vertical labels
-			//			g2d.rotate(Math.PI*3/2);
-			//			g.drawString(s, -(offsetY + internalOffsetY), (int) (offsetX + spaceForLabelX + (matrixBlockSize/2) + (i*matrixBlockSize) + 5));
-			//			g2d.rotate(Math.PI/2);
-		}
+	private String[] getInfoBoxLines(int xCoord, int yCoord) {
+		Double dis = cluster.getNormalizedDistance(leafIds[xCoord], leafIds[yCoord]);
+		return new String[] { "Similarity: " + df.format(1 - dis), "Distance: " + df.format(dis) };
 	}
 
 	/**
 	 * 
-	 * @param g
-	 * @param width
-	 * @param height
+	 * @param xCoord
+	 * @param yCoord
+	 * @return the width of the text in the info box of a cell of the matrix
 	 */
-	private void drawBackground(Graphics g, int width, int height) {
-		g.setColor(background);
-		g.fillRect(0, 0, width, height);
-	}
-
-	/**
-	 * 
-	 * @param g
-	 */
-	private void drawDendrogram(Graphics g) {
-		// draw the background
-		g.setColor(scaleColor);
-		g.fillRect(spaceForLabelX + offsetX + numberOfElements * matrixBlockSize, offsetY, dendroWidth + 10,
-			spaceForLabelY + numberOfElements * matrixBlockSize + 20);
-
-		// draw the dendrogram
-		drawDendrogramNode(cluster.getRootNode(), g);
-
-		// draw the dendrogram scale
-		g.setColor(scaleColor);
-		g.drawLine(getMatrixBorderE(), getMatrixBorderS(), getMatrixBorderE() + dendroWidth, getMatrixBorderS());
-		for (int i = 0; i <= 10; i++) {
-			String s = Double.toString(i / 10.);
-			g.drawLine(getMatrixBorderE() + (dendroWidth / 10 * i), getMatrixBorderS() + 1, getMatrixBorderE()
-					+ (dendroWidth / 10 * i), getMatrixBorderS() + 6);
-			g.drawString(s, getMatrixBorderE() + (dendroWidth / 10 * i) - (fm.stringWidth(s) / 2) + 1,
-					getMatrixBorderS() + 20);
-		}
-	}
-
-	/**
-	 * This method is recursively used to draw the dendrogram of the clusters
-	 * structure
-	 * 
-	 * @param node
-	 *            the current cluster node
-	 * @param g
-	 *            the graphics where the dendrogram is supposed to be drawn
-	 * @return the coordinates of the point connecting the children below the
-	 *         current cluster
-	 */
-	public Point drawDendrogramNode(HATreeNode node, Graphics g) {
-
-		if (node.isLeaf()) {
-
-			// we are on a leaf, just draw the dot
-			int x = askForX(), y = askForY(node);
-			String label = node.getName() + " "  + node.getId();
-
-			int width = fm.stringWidth(label);
-			g.setColor(DendrogramWidget.labelColor);
-			g.drawString(label, x - width - 3, y - 3);
-			return new Point(x, y);
-
-		} else {
-
-			// we are on the central body of the dendrogram
-
-			HATreeNode leftChild = node.getLeft();
-			HATreeNode rightChild = node.getRight();
-
-			Point left = drawDendrogramNode(leftChild, g);
-			Point right = drawDendrogramNode(rightChild, g);
-
-			g.setColor(DendrogramWidget.dendroColor);
-
-			double maxX = (left.getX() > right.getX()) ? left.getX() : right.getX();
-			double minY = (left.getY() < right.getY()) ? left.getY() : right.getY();
-			double gapY = Math.abs(left.getY() - right.getY());
-
-			// fill the gaps
-			if (left.getX() < maxX) {
-				g.drawLine((int) left.getX(), (int) left.getY(), (int) maxX - 1, (int) left.getY());
-				left.setLocation(maxX, left.getY());
-			}
-			if (right.getX() < maxX) {
-				g.drawLine((int) right.getX(), (int) right.getY(), (int) maxX - 1, (int) right.getY());
-				right.setLocation(maxX, right.getY());
-			}
-
-			// calculate the length of the line, proportional to the distance of the cluster
-			double clusterDistance = node.getMaxDistance() / cluster.getRootNode().getMaxDistance();
-			double lineLength = getMatrixBorderE() + (int) (DendrogramWidget.dendroWidth * clusterDistance) - maxX;
-
-			// draw the three lines
-			g.drawLine((int) left.getX(), (int) left.getY(), (int) (left.getX() + lineLength), (int) left.getY());
-			g.drawLine((int) right.getX(), (int) right.getY(), (int) (right.getX() + lineLength), (int) right.getY());
-			g.drawLine((int) (maxX + lineLength), (int) minY, (int) (maxX + lineLength), (int) (minY + gapY));
-			// draw the cluster oval
-			g.fillOval((int) (maxX + lineLength - (DendrogramWidget.dendroCircleSize / 2)),
-					(int) (minY + (gapY / 2) - (DendrogramWidget.dendroCircleSize / 2)),
-					DendrogramWidget.dendroCircleSize, DendrogramWidget.dendroCircleSize);
-			// draw the distance of the cluster
-			int below = ((minY + (gapY / 2) - 2) > (getMatrixBorderS() + getMatrixBorderN()) / 2) ? 15 : 0;
-			g.setColor(DendrogramWidget.labelColor);
-			g.drawString(df.format(clusterDistance), (int) (maxX + lineLength + 3),
-					(int) (minY + (gapY / 2) - 2 + below));
-
-			return new Point((int) (maxX + lineLength), (int) (minY + (gapY / 2)));
-		}
-	}
-
-	/**
-	 * This method extracts the color from the current cell measure
-	 * 
-	 * @param measure
-	 *            the current measure (must be between 0 and 1)
-	 * @return the color object associated with the measure
-	 */
-	private Color measureColor(Double measure) {
-		return new Color(matrixBrightestColor.getRed(), matrixBrightestColor.getGreen(),
-				matrixBrightestColor.getBlue(), (int) (255 * (1 - measure)));
+	private int getInfoBoxWidth(int xCoord, int yCoord) {
+		String[] textLines = getInfoBoxLines(xCoord, yCoord);
+		return Math.max(fm.stringWidth(textLines[0]), fm.stringWidth(textLines[1]));
 	}
 
 	@Override
@@ -500,16 +683,18 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	@Override
 	public void mouseDragged(MouseEvent e) {
 
-		offsetX -= mouseMovingX - e.getX();
-		offsetY -= mouseMovingY - e.getY();
+		geometry = geometry.withOffset(geometry.offsetX - (mouseMovingX - e.getX()), geometry.offsetY
+				- (mouseMovingY - e.getY()));
 
 		mouseMovingX = e.getX();
 		mouseMovingY = e.getY();
 
-		matrixBeginX = offsetX + spaceForLabelX;
-		matrixBeginY = offsetY + spaceForLabelY;
+		matrixBeginX = geometry.getMatrixBorderW();
+		matrixBeginY = geometry.getMatrixBorderN();
 
 		mouseOverMatrix = false;
+		overlayBounds = null;
+		sceneValid = false;
 
 		repaint();
 	}
@@ -525,9 +710,26 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 
 			mouseOverMatrix = (mouseMovingX > getMatrixBorderW() && mouseMovingX < getMatrixBorderE()
 					&& mouseMovingY > getMatrixBorderN() && mouseMovingY < getMatrixBorderS());
+			if (mouseOverMatrix) {
+				// the cell must exist in the matrix
+				int xCoord = geometry.blockAt(mouseMovingX - matrixBeginX);
+				int yCoord = geometry.blockAt(mouseMovingY - matrixBeginY);
+				mouseOverMatrix = fm != null && mouseMovingX >= matrixBeginX && mouseMovingY >= matrixBeginY
+						&& xCoord < numberOfElements && yCoord < numberOfElements;
+			}
 
-			if (mouseOverDendrogram || mouseOverMatrix) {
+			// repaint the old and the new overlays only, over the cached scene
+			if (fm == null) {
 				repaint();
+			} else {
+				Rectangle bounds = getOverlayBounds();
+				if (overlayBounds != null) {
+					repaint(overlayBounds);
+				}
+				if (bounds != null) {
+					repaint(bounds);
+				}
+				overlayBounds = bounds;
 			}
 			motionPixels = 0;
 		}
@@ -536,23 +738,670 @@ public class DendrogramWidget extends JComponent implements MouseListener, Mouse
 	@Override
 	public void mouseWheelMoved(MouseWheelEvent e) {
 
-		matrixBlockSize += e.getWheelRotation();
-
-		if (matrixBlockSize < 20 || matrixBlockSize > 200) {
-			if (matrixBlockSize < 20) {
-				matrixBlockSize = 20;
-			}
-			if (matrixBlockSize > 200) {
-				matrixBlockSize = 200;
-			}
+		int rotation = e.getWheelRotation();
+		double size;
+		if (geometry.blockSize + rotation >= matrixMinReadableBlockSize) {
+			size = Math.min(Math.round(geometry.blockSize + rotation), matrixMaxBlockSize);
+		} else {
+			// below the readable size, down to the size that fits the whole matrix
+			double fit = Math.max(getHeight(), 1) / (double) numberOfElements;
+			size = Math.min(geometry.blockSize * Math.pow(1.25, rotation), matrixMinReadableBlockSize);
+			size = Math.max(size, Math.min(fit, matrixMinReadableBlockSize));
+		}
+		if (size == geometry.blockSize) {
 			return;
 		}
+		geometry = geometry.withBlockSize(size);
+		layoutRows();
 
-		matrixBeginX = offsetX + spaceForLabelX;
-		matrixBeginY = offsetY + spaceForLabelY;
+		matrixBeginX = geometry.getMatrixBorderW();
+		matrixBeginY = geometry.getMatrixBorderN();
 		mouseOverMatrix = false;
+		overlayBounds = null;
+		sceneValid = false;
 
 		repaint();
 	}
 
+
+	/**
+	 * The layout of the matrix at a zoom and a panning: where the block of each
+	 * element and the borders of the matrix are, in pixels of the widget. It is
+	 * immutable, so the widget replaces it as it is zoomed or panned, and the
+	 * scenes rendered in the background share it.
+	 */
+	private static final class Geometry {
+
+		private final int numberOfElements;
+		// the size of a block of the matrix, in pixels
+		private final double blockSize;
+		private final int offsetX;
+		private final int offsetY;
+		private final int spaceForLabelX;
+		private final int spaceForLabelY;
+
+		Geometry(int numberOfElements, double blockSize, int offsetX, int offsetY, int spaceForLabelX,
+				int spaceForLabelY) {
+			this.numberOfElements = numberOfElements;
+			this.blockSize = blockSize;
+			this.offsetX = offsetX;
+			this.offsetY = offsetY;
+			this.spaceForLabelX = spaceForLabelX;
+			this.spaceForLabelY = spaceForLabelY;
+		}
+
+		Geometry withElements(int numberOfElements) {
+			return new Geometry(numberOfElements, blockSize, offsetX, offsetY, spaceForLabelX, spaceForLabelY);
+		}
+
+		Geometry withBlockSize(double blockSize) {
+			return new Geometry(numberOfElements, blockSize, offsetX, offsetY, spaceForLabelX, spaceForLabelY);
+		}
+
+		Geometry withOffset(int offsetX, int offsetY) {
+			return new Geometry(numberOfElements, blockSize, offsetX, offsetY, spaceForLabelX, spaceForLabelY);
+		}
+
+		/**
+		 * @param index
+		 *            the position of an element in the matrix
+		 * @return the distance in pixels of the block of the element from the
+		 *         border of the matrix
+		 */
+		int blockOffset(int index) {
+			return (int) Math.floor(index * blockSize);
+		}
+
+		/**
+		 * @param index
+		 *            the position of an element in the matrix
+		 * @return the distance in pixels of the center of the block of the element
+		 *         from the border of the matrix
+		 */
+		int blockCenter(int index) {
+			return blockOffset(index) + (int) (blockSize / 2);
+		}
+
+		/**
+		 * @param pixels
+		 *            a distance in pixels from the border of the matrix
+		 * @return the position of the element whose block is at that distance
+		 */
+		int blockAt(int pixels) {
+			return (int) Math.floor(pixels / blockSize);
+		}
+
+		int getMatrixBorderN() {
+			return offsetY + spaceForLabelY;
+		}
+
+		int getMatrixBorderE() {
+			return offsetX + spaceForLabelX + blockOffset(numberOfElements);
+		}
+
+		int getMatrixBorderS() {
+			return offsetY + spaceForLabelY + blockOffset(numberOfElements);
+		}
+
+		int getMatrixBorderW() {
+			return offsetX + spaceForLabelX;
+		}
+	}
+
+	/**
+	 * The background, the matrix and the dendrogram of a state of the widget.
+	 * A scene copies the state it is rendered from, so that it can be rendered
+	 * off the event dispatch thread while the widget changes. Its rendering
+	 * stops as soon as it is cancelled.
+	 */
+	private static class Scene {
+
+		private static final int[] matrixColors = createMatrixColors();
+
+		// the state of the widget
+		private HACluster cluster;
+		private int numberOfElements;
+		private String[] leafNames;
+		private int[] leafIds;
+		private int[] leafPositions;
+		private int[] nodeLeft;
+		private int[] nodeRight;
+		private int[] nodeLeaf;
+		private int[] nodeX;
+		private double[] nodeDistance;
+		private int[] nodeY;
+		private Geometry geometry;
+		private Aggregation aggregation;
+		private ConcurrentHashMap<Integer, float[]> aggregates;
+		private FontMetrics fm;
+		private int width;
+		private int height;
+
+		// the size of the rendering in device pixels, and the device pixels per pixel
+		private int deviceWidth;
+		private int deviceHeight;
+		private double scale;
+
+		private DecimalFormat df = new DecimalFormat("#.###");
+		// the raster the visible cells of the matrix are written into
+		private BufferedImage heatmap;
+		private volatile boolean cancelled = false;
+
+		/**
+		 * @param widget
+		 *            the widget, whose state is copied
+		 * @param aggregates
+		 *            the cached aggregated distances, filled by the scene
+		 * @param deviceWidth
+		 *            the width of the rendering, in device pixels
+		 * @param deviceHeight
+		 *            the height of the rendering, in device pixels
+		 * @param scale
+		 *            the device pixels per pixel of the widget
+		 */
+		Scene(DendrogramWidget widget, ConcurrentHashMap<Integer, float[]> aggregates, int deviceWidth,
+				int deviceHeight, double scale) {
+			cluster = widget.cluster;
+			numberOfElements = widget.numberOfElements;
+			leafNames = widget.leafNames;
+			leafIds = widget.leafIds;
+			leafPositions = widget.leafPositions;
+			nodeLeft = widget.nodeLeft;
+			nodeRight = widget.nodeRight;
+			nodeLeaf = widget.nodeLeaf;
+			nodeX = widget.nodeX;
+			nodeDistance = widget.nodeDistance;
+			nodeY = widget.nodeY;
+			geometry = widget.geometry;
+			aggregation = widget.aggregation;
+			this.aggregates = aggregates;
+			fm = widget.fm;
+			width = widget.getWidth();
+			height = widget.getHeight();
+			this.deviceWidth = deviceWidth;
+			this.deviceHeight = deviceHeight;
+			this.scale = scale;
+		}
+
+		/**
+		 * Stops the rendering of the scene
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+
+		/**
+		 * @return whether the preview of the scene shows the matrix with larger
+		 *         blocks than the complete rendering, computed faster
+		 */
+		boolean hasPreview() {
+			int cells = getCellsPerBlock(false);
+			return getCellsPerBlock(true) != cells && (cells == 1 || !aggregates.containsKey(cells));
+		}
+
+		/**
+		 * Renders the scene into an image
+		 * 
+		 * @param preview
+		 *            whether to render the coarse preview of the matrix
+		 * @return the image, or null if the scene was cancelled
+		 */
+		BufferedImage render(boolean preview) {
+			if (cancelled) {
+				return null;
+			}
+			BufferedImage image = new BufferedImage(deviceWidth, deviceHeight, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = image.createGraphics();
+			g.scale(scale, scale);
+			g.setClip(0, 0, width, height);
+			g.setFont(fm.getFont());
+			paint(g, preview);
+			g.dispose();
+			return cancelled ? null : image;
+		}
+
+		/**
+		 * @return the number of elements between two labels, so that the labels
+		 *         do not overlap
+		 */
+		private int getLabelStep() {
+			return Math.max((int) Math.ceil(fm.getHeight() / geometry.blockSize), 1);
+		}
+
+		/**
+		 * Paints the background, the matrix and the dendrogram
+		 * 
+		 * @param g
+		 * @param preview
+		 *            whether to paint the coarse preview of the matrix
+		 */
+		void paint(Graphics g, boolean preview) {
+			((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+			drawBackground(g, width, height);
+			drawDendrogram(g);
+			drawMatrix(g, preview);
+		}
+
+		/**
+		 * 
+		 * @param g
+		 * @param preview
+		 *            whether to draw blocks of at least
+		 *            {@link DendrogramWidget#matrixPreviewBlockSize} pixels, each with the
+		 *            distance of its central cell
+		 */
+		private void drawMatrix(Graphics g, boolean preview) {
+			// draw the background
+			g.setColor(background);
+			g.fillRect(0, 0, geometry.getMatrixBorderE(), geometry.getMatrixBorderS() + 20);
+
+			// draw the visible part of the matrix, merging cells smaller than a pixel into blocks
+			int cells = getCellsPerBlock(preview);
+			float[] blocks = cells == 1 || preview ? null : getAggregates(cells);
+			int blocksPerSide = (numberOfElements + cells - 1) / cells;
+			Rectangle clip = g.getClipBounds();
+			int west = geometry.getMatrixBorderW();
+			int north = geometry.getMatrixBorderN();
+			int firstX = 0, lastX = numberOfElements, firstY = 0, lastY = numberOfElements;
+			if (clip != null) {
+				firstX = Math.max(geometry.blockAt(clip.x - west), 0) / cells * cells;
+				lastX = Math.min(geometry.blockAt(clip.x + clip.width - west) / cells * cells + cells, numberOfElements);
+				firstY = Math.max(geometry.blockAt(clip.y - north), 0) / cells * cells;
+				lastY = Math.min(geometry.blockAt(clip.y + clip.height - north) / cells * cells + cells, numberOfElements);
+			}
+			int left = geometry.blockOffset(firstX);
+			int top = geometry.blockOffset(firstY);
+			int width = geometry.blockOffset(lastX) - left;
+			int height = geometry.blockOffset(lastY) - top;
+			if (width > 0 && height > 0) {
+				// write the pixels of the cells straight into the raster, one row of pixels per row of cells; without
+				// a clip (e.g. when exporting to SVG) the whole matrix is drawn, so write one pixel per block and let
+				// drawImage scale the raster to the size of the blocks
+				boolean scaled = clip == null;
+				int columnsCount = scaled ? (lastX - firstX + cells - 1) / cells : width;
+				int rowsCount = scaled ? (lastY - firstY + cells - 1) / cells : height;
+				if (heatmap == null || heatmap.getWidth() < columnsCount || heatmap.getHeight() < rowsCount) {
+					heatmap = new BufferedImage(Math.max(columnsCount, heatmap == null ? 0 : heatmap.getWidth()), Math.max(
+							rowsCount, heatmap == null ? 0 : heatmap.getHeight()), BufferedImage.TYPE_INT_RGB);
+				}
+				int stride = heatmap.getWidth();
+				int[] pixels = ((DataBufferInt) heatmap.getRaster().getDataBuffer()).getData();
+				int[] columns = new int[lastX - firstX];
+				for (int a = firstX; a < lastX; a++) {
+					columns[a - firstX] = leafIds[a];
+				}
+				for (int b = firstY; b < lastY; b += cells) {
+					if (cancelled) {
+						return;
+					}
+					int y0 = scaled ? (b - firstY) / cells : geometry.blockOffset(b) - top;
+					int y1 = scaled ? y0 + 1 : geometry.blockOffset(Math.min(b + cells, numberOfElements)) - top;
+					if (y0 == y1) {
+						continue;
+					}
+					int row = y0 * stride;
+					int id = leafIds[b];
+					for (int a = firstX; a < lastX; a += cells) {
+						double distanceValue;
+						if (cells == 1) {
+							distanceValue = cluster.getNormalizedDistance(columns[a - firstX], id);
+						} else if (blocks != null) {
+							distanceValue = blocks[(a / cells) * blocksPerSide + b / cells];
+						} else {
+							distanceValue = aggregateDistance(a, b, cells, preview ? 1 : matrixAggregationSamples);
+						}
+						int x0 = scaled ? (a - firstX) / cells : geometry.blockOffset(a) - left;
+						int x1 = scaled ? x0 + 1 : geometry.blockOffset(Math.min(a + cells, numberOfElements)) - left;
+						Arrays.fill(pixels, row + x0, row + x1, measureColor(distanceValue));
+					}
+					for (int y = y0 + 1; y < y1; y++) {
+						System.arraycopy(pixels, row, pixels, y * stride, columnsCount);
+					}
+				}
+				// the last scaled blocks may hold fewer cells: scale all blocks alike and clip what exceeds the matrix
+				int right = scaled ? geometry.blockOffset(firstX + columnsCount * cells) : left + width;
+				int bottom = scaled ? geometry.blockOffset(firstY + rowsCount * cells) : top + height;
+				Graphics matrix = g.create();
+				matrix.clipRect(west + left, north + top, width, height);
+				matrix.drawImage(heatmap, west + left, north + top, west + right, north + bottom, 0, 0, columnsCount,
+						rowsCount, null);
+				matrix.dispose();
+			}
+
+			// draw the visible labels, skipping the ones with no room
+			g.setColor(new Color(172, 229, 254, (int) (255 * (.8))));
+			int step = getLabelStep();
+			for (int i = firstY / step * step; i < lastY; i += step) {
+				String s = leafNames[i];
+				int internalOffsetX = geometry.spaceForLabelX - fm.stringWidth(s) - 5;
+				// horizontal labels
+				g.drawString(s, geometry.offsetX + internalOffsetX, north + geometry.blockCenter(i) + 5);
+				// vertical labels
+				//			g2d.rotate(Math.PI*3/2);
+				//			g.drawString(s, -(offsetY + internalOffsetY), (int) (offsetX + spaceForLabelX + (matrixBlockSize/2) + (i*matrixBlockSize) + 5));
+				//			g2d.rotate(Math.PI/2);
+			}
+		}
+
+		/**
+		 * @param preview
+		 *            whether the blocks are for the preview
+		 * @return the number of cells per side of the blocks of the matrix, the
+		 *         smallest power of 2 that makes a block at least a pixel, or
+		 *         {@link DendrogramWidget#matrixPreviewBlockSize} pixels for the preview
+		 */
+		private int getCellsPerBlock(boolean preview) {
+			int cells = 1;
+			while (cells * geometry.blockSize < (preview ? matrixPreviewBlockSize : 1)) {
+				cells *= 2;
+			}
+			return cells;
+		}
+
+		/**
+		 * Returns the aggregated distances of the blocks of a zoom level, as set by
+		 * {@link DendrogramWidget#setAggregation(Aggregation)}. A level is computed once per
+		 * cluster: from the level with half its cells per side if that is cached,
+		 * merging four blocks into one, otherwise from every distance of the
+		 * cluster, read in the order they are stored.
+		 * 
+		 * @param cells
+		 *            the number of cells per side of a block, a power of 2
+		 * @return the distances of the blocks, row by row, or null if the level has
+		 *         more than {@link DendrogramWidget#matrixMaxCachedBlocks} blocks
+		 */
+		private float[] getAggregates(int cells) {
+			int side = (numberOfElements + cells - 1) / cells;
+			if ((long) side * side > matrixMaxCachedBlocks) {
+				return null;
+			}
+			float[] blocks = aggregates.get(cells);
+			if (blocks != null) {
+				return blocks;
+			}
+			blocks = new float[side * side];
+			float[] finer = aggregates.get(cells / 2);
+			if (finer != null) {
+				// merge the four blocks of the finer level, weighted by their cells
+				int finerSide = (numberOfElements + cells / 2 - 1) / (cells / 2);
+				for (int p = 0; p < side; p++) {
+					for (int q = 0; q < side; q++) {
+						double min = Double.POSITIVE_INFINITY, sum = 0;
+						for (int i = 2 * p; i < Math.min(2 * p + 2, finerSide); i++) {
+							for (int j = 2 * q; j < Math.min(2 * q + 2, finerSide); j++) {
+								float distance = finer[i * finerSide + j];
+								min = Math.min(min, distance);
+								sum += distance * Math.min(cells / 2, numberOfElements - i * (cells / 2))
+										* Math.min(cells / 2, numberOfElements - j * (cells / 2));
+							}
+						}
+						blocks[p * side + q] = (float) (aggregation == Aggregation.MIN ? min : sum
+								/ (Math.min(cells, numberOfElements - p * cells) * Math
+										.min(cells, numberOfElements - q * cells)));
+					}
+				}
+			} else {
+				// the positions of the instances in the matrix, by increasing id
+				int[] positions = new int[numberOfElements];
+				int count = 0;
+				for (int id = 0; id < leafPositions.length; id++) {
+					if (leafPositions[id] >= 0) {
+						positions[count++] = leafPositions[id];
+					}
+				}
+				double[] values = new double[side * side];
+				if (aggregation == Aggregation.MIN) {
+					Arrays.fill(values, Double.POSITIVE_INFINITY);
+				}
+				for (int k = 0; k < numberOfElements; k++) {
+					if (cancelled) {
+						return null;
+					}
+					int row = positions[k] / cells;
+					for (int l = 0; l <= k; l++) {
+						double distance = l == k ? 0 : cluster.getNormalizedDistance(leafIds[positions[l]],
+								leafIds[positions[k]]);
+						int column = positions[l] / cells;
+						if (aggregation == Aggregation.MIN) {
+							values[row * side + column] = Math.min(values[row * side + column], distance);
+							values[column * side + row] = values[row * side + column];
+						} else {
+							values[row * side + column] += distance;
+							if (l != k) {
+								values[column * side + row] += distance;
+							}
+						}
+					}
+				}
+				for (int p = 0; p < side; p++) {
+					for (int q = 0; q < side; q++) {
+						double value = values[p * side + q];
+						if (aggregation == Aggregation.MEAN) {
+							value /= Math.min(cells, numberOfElements - p * cells)
+									* Math.min(cells, numberOfElements - q * cells);
+						}
+						blocks[p * side + q] = (float) value;
+					}
+				}
+			}
+			aggregates.put(cells, blocks);
+			return blocks;
+		}
+
+		/**
+		 * Aggregates the distances of a block of cells, as set by
+		 * {@link DendrogramWidget#setAggregation(Aggregation)}, for the zoom levels with too many
+		 * blocks to be cached, and for the preview. Large blocks are sampled on a
+		 * grid, so that the cost of a block does not grow with the zoom.
+		 * 
+		 * @param a
+		 *            the first column of the block
+		 * @param b
+		 *            the first row of the block
+		 * @param cells
+		 *            the number of cells per side of the block
+		 * @param samples
+		 *            the number of cells sampled per side of the block,
+		 *            {@link DendrogramWidget#matrixAggregationSamples} or 1 for
+		 *            the preview
+		 * @return the aggregated distance
+		 */
+		private double aggregateDistance(int a, int b, int cells, int samples) {
+			int columns = Math.min(cells, numberOfElements - a);
+			int rows = Math.min(cells, numberOfElements - b);
+			int samplesX = Math.min(columns, samples);
+			int samplesY = Math.min(rows, samples);
+			double min = Double.POSITIVE_INFINITY, sum = 0;
+			for (int i = 0; i < samplesX; i++) {
+				int column = leafIds[a + (int) ((i + .5) * columns / samplesX)];
+				for (int j = 0; j < samplesY; j++) {
+					double distance = cluster.getNormalizedDistance(column,
+							leafIds[b + (int) ((j + .5) * rows / samplesY)]);
+					min = Math.min(min, distance);
+					sum += distance;
+				}
+			}
+			return aggregation == Aggregation.MIN ? min : sum / (samplesX * samplesY);
+		}
+
+		/**
+		 * 
+		 * @param g
+		 * @param width
+		 * @param height
+		 */
+		static void drawBackground(Graphics g, int width, int height) {
+			g.setColor(background);
+			g.fillRect(0, 0, width, height);
+		}
+
+		/**
+		 * 
+		 * @param g
+		 */
+		private void drawDendrogram(Graphics g) {
+			// draw the background
+			g.setColor(scaleColor);
+			int east = geometry.getMatrixBorderE();
+			int south = geometry.getMatrixBorderS();
+			g.fillRect(east, geometry.offsetY, dendroWidth + 10, south - geometry.offsetY + 20);
+
+			// draw the dendrogram
+			drawDendrogramNodes(g);
+
+			// draw the dendrogram scale
+			g.setColor(scaleColor);
+			g.drawLine(east, south, east + dendroWidth, south);
+			for (int i = 0; i <= 10; i++) {
+				String s = Double.toString(i / 10.);
+				g.drawLine(east + (dendroWidth / 10 * i), south + 1, east + (dendroWidth / 10 * i), south + 6);
+				g.drawString(s, east + (dendroWidth / 10 * i) - (fm.stringWidth(s) / 2) + 1, south + 20);
+			}
+		}
+
+		/**
+		 * This method draws the dendrogram of the clusters structure, replaying the
+		 * layout in post-order and skipping the nodes out of the clip
+		 * 
+		 * @param g
+		 *            the graphics where the dendrogram is supposed to be drawn
+		 */
+		private void drawDendrogramNodes(Graphics g) {
+			int east = geometry.getMatrixBorderE();
+			int north = geometry.getMatrixBorderN();
+			int step = getLabelStep();
+			int margin = fm.getHeight() + 15;
+			Rectangle clip = g.getClipBounds();
+			int[] x = new int[nodeX.length];
+			for (int k = 0; k < nodeX.length && !cancelled; k++) {
+				x[k] = east + nodeX[k];
+				if (nodeLeaf[k] >= 0) {
+					int y = north + nodeY[k];
+					if (clip != null && (y + margin < clip.y || y - margin > clip.y + clip.height)) {
+						continue;
+					}
+					drawDendrogramLeaf(nodeLeaf[k], x[k], y, step, g);
+				} else {
+					int leftY = north + nodeY[nodeLeft[k]];
+					int rightY = north + nodeY[nodeRight[k]];
+					if (clip != null && (Math.max(leftY, rightY) + margin < clip.y
+							|| Math.min(leftY, rightY) - margin > clip.y + clip.height)) {
+						continue;
+					}
+					drawDendrogramMerge(k, x[nodeLeft[k]], leftY, x[nodeRight[k]], rightY, x[k], g);
+				}
+			}
+		}
+
+		/**
+		 * Draws a leaf of the dendrogram
+		 * 
+		 * @param leaf
+		 *            the position of the leaf in the matrix
+		 * @param x
+		 *            the x of the leaf
+		 * @param y
+		 *            the y of the leaf
+		 * @param step
+		 *            the number of leaves between two labels
+		 * @param g
+		 *            the graphics where the dendrogram is supposed to be drawn
+		 */
+		private void drawDendrogramLeaf(int leaf, int x, int y, int step, Graphics g) {
+			// we are on a leaf, just draw the label, if there is room for it
+			if (leaf % step == 0) {
+				String label = leafNames[leaf] + " " + leafIds[leaf];
+
+				int width = fm.stringWidth(label);
+				g.setColor(DendrogramWidget.labelColor);
+				g.drawString(label, x - width - 3, y - 3);
+			}
+		}
+
+		/**
+		 * Draws the connectors of a cluster to its children
+		 * 
+		 * @param node
+		 *            the post-order index of the cluster
+		 * @param leftX
+		 *            the x of the left child
+		 * @param leftY
+		 *            the y of the left child
+		 * @param rightX
+		 *            the x of the right child
+		 * @param rightY
+		 *            the y of the right child
+		 * @param x
+		 *            the x of the cluster
+		 * @param g
+		 *            the graphics where the dendrogram is supposed to be drawn
+		 */
+		private void drawDendrogramMerge(int node, int leftX, int leftY, int rightX, int rightY, int x, Graphics g) {
+			g.setColor(DendrogramWidget.dendroColor);
+
+			int maxX = Math.max(leftX, rightX);
+			int minY = Math.min(leftY, rightY);
+			int gapY = Math.abs(leftY - rightY);
+
+			// fill the gaps
+			if (leftX < maxX) {
+				g.drawLine(leftX, leftY, maxX - 1, leftY);
+			}
+			if (rightX < maxX) {
+				g.drawLine(rightX, rightY, maxX - 1, rightY);
+			}
+
+			// draw the three lines
+			g.drawLine(maxX, leftY, x, leftY);
+			g.drawLine(maxX, rightY, x, rightY);
+			g.drawLine(x, minY, x, minY + gapY);
+			// draw the cluster oval
+			g.fillOval(x - (DendrogramWidget.dendroCircleSize / 2),
+					(int) (minY + (gapY / 2.) - (DendrogramWidget.dendroCircleSize / 2)),
+					DendrogramWidget.dendroCircleSize, DendrogramWidget.dendroCircleSize);
+			// draw the distance of the cluster, if there is room for it
+			if (gapY >= fm.getHeight()) {
+				int below = ((minY + (gapY / 2.) - 2) > (geometry.getMatrixBorderS() + geometry.getMatrixBorderN()) / 2) ? 15 : 0;
+				g.setColor(DendrogramWidget.labelColor);
+				g.drawString(df.format(nodeDistance[node]), x + 3, (int) (minY + (gapY / 2.) - 2 + below));
+			}
+		}
+
+		/**
+		 * This method extracts the color from the current cell measure
+		 * 
+		 * @param measure
+		 *            the current measure (must be between 0 and 1)
+		 * @return the RGB value of the color associated with the measure
+		 */
+		private static int measureColor(double measure) {
+			return matrixColors[Math.min(Math.max((int) (255 * (1 - measure)), 0), 255)];
+		}
+
+		/**
+		 * Computes the colors of the matrix: the brightest color with each alpha
+		 * from 0 to 255, blended over the background as Java2D blends them
+		 * 
+		 * @return the RGB value of the color of each alpha
+		 */
+		private static int[] createMatrixColors() {
+			int[] colors = new int[256];
+			for (int alpha = 0; alpha < 256; alpha++) {
+				int red = blend(matrixBrightestColor.getRed(), background.getRed(), alpha);
+				int green = blend(matrixBrightestColor.getGreen(), background.getGreen(), alpha);
+				int blue = blend(matrixBrightestColor.getBlue(), background.getBlue(), alpha);
+				colors[alpha] = 0xff000000 | (red << 16) | (green << 8) | blue;
+			}
+			return colors;
+		}
+
+		/**
+		 * @return a color component blended with alpha over another
+		 */
+		private static int blend(int source, int destination, int alpha) {
+			return (source * alpha + 127) / 255 + (destination * (255 - alpha) + 127) / 255;
+		}
+	}
+
 }
@@ -0,0 +1,351 @@
+package org.processmining.plugins;
+
+import it.processmining.clustering.hierarchical.SparseVector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deckfour.xes.model.XAttributeLiteral;
+import org.deckfour.xes.model.XAttributeMap;
+import org.deckfour.xes.model.XEvent;
+import org.deckfour.xes.model.XLog;
+import org.deckfour.xes.model.XTrace;
+
+/**
+ * Counts how many times each resource performed each activity of a log.
+ * Activity and resource names are interned to int ids the first time they are
+ * seen, and counts are accumulated in primitive hash tables, one per activity,
+ * so the events are scanned without boxing.
+ *
+ * Large logs can be scanned in parallel: the traces are split in contiguous
+ * partitions, each counted by a worker in its own tables, and the partial tables
+ * are merged in partition order, so that ids and counts are the same as in a
+ * serial scan.
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ */
+public class ActivityProfileBuilder {
+
+	/* More partitions than threads balance the load of traces of different length */
+	private static final int PARTITIONS_PER_THREAD = 4;
+
+	private HashMap<String, Integer> activityIds = new HashMap<String, Integer>();
+	private HashMap<String, Integer> resourceIds = new HashMap<String, Integer>();
+	private ArrayList<String> activities = new ArrayList<String>();
+	private ArrayList<String> resources = new ArrayList<String>();
+	private ArrayList<CountTable> counts = new ArrayList<CountTable>();
+	private String lifecycleTransition;
+
+	/**
+	 * Builds a profile builder that counts every event
+	 */
+	public ActivityProfileBuilder() {
+		this(null);
+	}
+
+	/**
+	 * Builds a profile builder that only counts the events with the given
+	 * lifecycle:transition, such as "complete". Events without a transition are
+	 * taken as complete.
+	 *
+	 * @param lifecycleTransition the transition to count, or null to count every event
+	 */
+	public ActivityProfileBuilder(String lifecycleTransition) {
+		this.lifecycleTransition = lifecycleTransition;
+	}
+
+	/**
+	 * Counts the events of every trace of a log
+	 *
+	 * @param log the log
+	 */
+	public void addLog(XLog log) {
+		for (XTrace trace : log) {
+			addTrace(trace);
+		}
+	}
+
+	/**
+	 * Counts the events of every trace of a log on several threads. The log must
+	 * support concurrent reads of its traces.
+	 *
+	 * @param log the log
+	 * @param parallelism the number of threads; 1 counts on the calling thread
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public void addLog(final XLog log, int parallelism) throws InterruptedException {
+		int partitions = Math.min(log.size(), PARTITIONS_PER_THREAD * parallelism);
+		if (parallelism <= 1 || partitions <= 1) {
+			addLog(log);
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			List<Future<ActivityProfileBuilder>> results = new ArrayList<Future<ActivityProfileBuilder>>();
+			for (int p = 0; p < partitions; p++) {
+				final int from = (int) ((long) log.size() * p / partitions);
+				final int to = (int) ((long) log.size() * (p + 1) / partitions);
+				results.add(executor.submit(new Callable<ActivityProfileBuilder>() {
+					public ActivityProfileBuilder call() {
+						ActivityProfileBuilder partial = new ActivityProfileBuilder(lifecycleTransition);
+						for (int t = from; t < to; t++) {
+							partial.addTrace(log.get(t));
+						}
+						return partial;
+					}
+				}));
+			}
+			for (Future<ActivityProfileBuilder> result : results) {
+				merge(result.get());
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Adds the counts of another builder to this one. Names that are new to this
+	 * builder get ids in the order the other builder first saw them.
+	 *
+	 * @param other the other builder
+	 */
+	public void merge(ActivityProfileBuilder other) {
+		int[] resourceMap = new int[other.resources.size()];
+		for (int r = 0; r < resourceMap.length; r++) {
+			resourceMap[r] = resourceId(other.resources.get(r));
+		}
+		for (int a = 0; a < other.activities.size(); a++) {
+			CountTable table = counts.get(activityId(other.activities.get(a)));
+			CountTable partial = other.counts.get(a);
+			for (int slot = 0; slot < partial.keys.length; slot++) {
+				if (partial.keys[slot] != CountTable.FREE) {
+					table.add(resourceMap[partial.keys[slot]], partial.values[slot]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the events of a trace
+	 *
+	 * @param trace the trace
+	 */
+	public void addTrace(XTrace trace) {
+		for (XEvent event : trace) {
+			addEvent(event);
+		}
+	}
+
+	/**
+	 * Counts an event, if it passes the lifecycle filter and has a concept:name.
+	 * Events without org:resource register their activity, but count nothing.
+	 *
+	 * @param event the event
+	 */
+	public void addEvent(XEvent event) {
+		XAttributeMap attributes = event.getAttributes();
+
+		if (lifecycleTransition != null) {
+			XAttributeLiteral transition = (XAttributeLiteral) attributes.get("lifecycle:transition");
+			String value = transition != null ? transition.getValue() : "complete";
+			if (!lifecycleTransition.equalsIgnoreCase(value)) {
+				return;
+			}
+		}
+
+		XAttributeLiteral activity = (XAttributeLiteral) attributes.get("concept:name");
+		if (activity == null) {
+			return;
+		}
+		XAttributeLiteral resource = (XAttributeLiteral) attributes.get("org:resource");
+		add(activity.getValue(), resource != null ? resource.getValue() : null);
+	}
+
+	/**
+	 * Counts one execution of an activity by a resource
+	 *
+	 * @param activity the activity name
+	 * @param resource the resource name, or null to only register the activity
+	 */
+	public void add(String activity, String resource) {
+		CountTable table = counts.get(activityId(activity));
+		if (resource != null) {
+			table.add(resourceId(resource), 1);
+		}
+	}
+
+	/**
+	 * @return the number of distinct activities
+	 */
+	public int getActivityCount() {
+		return activities.size();
+	}
+
+	/**
+	 * @return the number of distinct resources
+	 */
+	public int getResourceCount() {
+		return resources.size();
+	}
+
+	/**
+	 * @param id an activity id
+	 * @return the activity name
+	 */
+	public String getActivity(int id) {
+		return activities.get(id);
+	}
+
+	/**
+	 * @param id a resource id
+	 * @return the resource name
+	 */
+	public String getResource(int id) {
+		return resources.get(id);
+	}
+
+	/**
+	 * @param activity an activity id
+	 * @param resource a resource id
+	 * @return how many times the resource performed the activity
+	 */
+	public int getCount(int activity, int resource) {
+		return counts.get(activity).get(resource);
+	}
+
+	/**
+	 * Builds the profile of an activity: a vector over the resources, holding the
+	 * {@link #weight(int) weight} of how many times each resource performed the
+	 * activity.
+	 *
+	 * @param activity an activity id
+	 * @return the profile, with as many non-zero coordinates as resources that
+	 * performed the activity
+	 */
+	public SparseVector getProfile(int activity) {
+		CountTable table = counts.get(activity);
+		int[] indices = new int[table.size()];
+		double[] values = new double[indices.length];
+		int k = 0;
+		for (int slot = 0; slot < table.keys.length; slot++) {
+			if (table.keys[slot] != CountTable.FREE) {
+				indices[k] = table.keys[slot];
+				values[k++] = weight(table.values[slot]);
+			}
+		}
+		return new SparseVector(resources.size(), indices, values);
+	}
+
+	/**
+	 * Weights the executions of an activity by a resource logarithmically, as
+	 * log(count + 1). Counts spread over orders of magnitude between the
+	 * resources of a log, and raw counts would cluster activities by the
+	 * workload of their busiest resources rather than by who performs them.
+	 * Resources that never performed the activity keep weight 0, so profiles
+	 * stay sparse.
+	 *
+	 * @param count how many times a resource performed an activity
+	 * @return the weight of the resource in the profile of the activity
+	 */
+	static double weight(int count) {
+		return Math.log(count + 1);
+	}
+
+	private int activityId(String activity) {
+		Integer id = activityIds.get(activity);
+		if (id == null) {
+			id = activities.size();
+			activityIds.put(activity, id);
+			activities.add(activity);
+			counts.add(new CountTable());
+		}
+		return id;
+	}
+
+	private int resourceId(String resource) {
+		Integer id = resourceIds.get(resource);
+		if (id == null) {
+			id = resources.size();
+			resourceIds.put(resource, id);
+			resources.add(resource);
+		}
+		return id;
+	}
+
+	/**
+	 * Open-addressing hash table from non-negative int keys to int counts
+	 */
+	static class CountTable {
+		static final int FREE = -1;
+
+		int[] keys;
+		int[] values;
+		private int size;
+
+		CountTable() {
+			keys = new int[8];
+			values = new int[8];
+			Arrays.fill(keys, FREE);
+		}
+
+		int size() {
+			return size;
+		}
+
+		int get(int key) {
+			int mask = keys.length - 1;
+			for (int slot = hash(key) & mask; keys[slot] != FREE; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) {
+					return values[slot];
+				}
+			}
+			return 0;
+		}
+
+		void add(int key, int count) {
+			int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+			while (keys[slot] != FREE) {
+				if (keys[slot] == key) {
+					values[slot] += count;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = count;
+			if (++size * 2 > keys.length) {
+				grow();
+			}
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new int[oldKeys.length * 2];
+			values = new int[oldValues.length * 2];
+			Arrays.fill(keys, FREE);
+			size = 0;
+			for (int slot = 0; slot < oldKeys.length; slot++) {
+				if (oldKeys[slot] != FREE) {
+					add(oldKeys[slot], oldValues[slot]);
+				}
+			}
+		}
+
+		private static int hash(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -1,10 +1,13 @@
 package org.processmining.plugins;
 
+import it.processmining.clustering.hierarchical.ClusteringMonitor;
+import it.processmining.clustering.hierarchical.CutIndex;
 import it.processmining.clustering.hierarchical.Distance;
 import it.processmining.clustering.hierarchical.EuclideanDistance;
 import it.processmining.clustering.hierarchical.HACluster;
 import it.processmining.clustering.hierarchical.HAClusterer;
 import it.processmining.clustering.hierarchical.HATreeNode;
+import it.processmining.clustering.jfr.PluginStageEvent;
 import it.processmining.clustering.ui.DendrogramWidget;
 
 import java.awt.GridBagConstraints;
@@ -12,20 +15,18 @@ import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
-import org.deckfour.xes.model.XAttributeLiteral;
-import org.deckfour.xes.model.XAttributeMap;
-import org.deckfour.xes.model.XEvent;
 import org.deckfour.xes.model.XLog;
-import org.deckfour.xes.model.XTrace;
 import org.processmining.contexts.uitopia.UIPluginContext;
 import org.processmining.contexts.uitopia.annotations.UITopiaVariant;
 import org.processmining.framework.plugin.PluginContext;
@@ -43,8 +44,6 @@ import org.processmining.models.graphbased.directed.bpmn.elements.Activity;
 import org.processmining.models.graphbased.directed.bpmn.elements.Event;
 import org.processmining.models.graphbased.directed.bpmn.elements.Event.EventType;
 import org.processmining.models.graphbased.directed.bpmn.elements.Swimlane;
-
-import weka.core.Instance;
 	
 class Configuration extends JPanel {
 	private static final long serialVersionUID = -3016992036483249169L;
@@ -89,6 +88,15 @@ class Configuration extends JPanel {
 		gbc_sliderCutThreshold.gridy = 1;
 		add(sliderCutThreshold, gbc_sliderCutThreshold);
 		
+		/* The index counts the groups in O(log n), so the label can follow the slider */
+		final CutIndex cutIndex = cluster.getCutIndex();
+		sliderCutThreshold.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				updateCutLabel(cutIndex);
+			}
+		});
+		updateCutLabel(cutIndex);
+		
 		dendrogramWidget.addMouseListener(new MouseListener() {
 			
 			public void mouseReleased(MouseEvent e) { }
@@ -109,10 +117,18 @@ class Configuration extends JPanel {
 		return sliderCutThreshold.getValue() / 100.;
 	}
 	
+	private void updateCutLabel(CutIndex cutIndex) {
+		lblCutThreshold.setText(String.format("Cut threshold (%d groups):", cutIndex.getGroupCount(getCut())));
+	}
+	
 }
 
 public class RoleClusterPlugin {
 	
+	/* Plugin names recorded in the flight recorder events of their stages */
+	private static final String BPMNIFY = "BPMNify Heuristics";
+	private static final String CLUSTER_ROLES = "RoleCluster";
+	
 	@Plugin(name = "BPMNify Heuristics", parameterLabels = { "Process model", "Start activities", "End activities", "Role cluster" }, 
 			returnLabels = { "Result Net" }, returnTypes = { BPMNDiagram.class }, 
 			userAccessible = true, help = "Builds a BPMN diagram with swimlanes, from a CNet and a RoleCluster")
@@ -140,6 +156,8 @@ public class RoleClusterPlugin {
 		 */
 		progress.setCaption("Converting net...");
 		progress.setValue(0);
+		PluginStageEvent event = new PluginStageEvent();
+		event.start();
 		for (FlexNode node : net.getNodes()) {
 			String label = node.getLabel();
 			
@@ -148,11 +166,15 @@ public class RoleClusterPlugin {
 			Activity activity = diagram.addActivity(label, false, false, false, false, false);
 			activityByLabel.put(label, activity);
 		}
+		event.finish(BPMNIFY, "Convert net", activityByLabel.size(), 0);
 		
 		/*
 		 * Step 1: add flow relations between activities in the diagram
 		 */
 		progress.setValue(1);
+		event = new PluginStageEvent();
+		event.start();
+		int flows = 0;
 		for (FlexNode n1 : net.getNodes()) {
 			for (SetFlex n3 : n1.getOutputNodes()) {
 				for (FlexNode n2 : n3) {
@@ -160,15 +182,20 @@ public class RoleClusterPlugin {
 					Activity a2 = activityByLabel.get(n2.getLabel());
 					
 					diagram.addFlow(a1, a2, "");
+					flows++;
 				}
 			}
 		}
+		event.finish(BPMNIFY, "Add flows", flows, 0);
 		
 		/*
 		 * Step 2: add start and end events
 		 */
 		progress.setCaption("Adding start and end events...");
 		progress.setValue(2);
+		event = new PluginStageEvent();
+		event.start();
+		flows = 0;
 
 		Event start = diagram.addEvent("Start", EventType.START, null, null, null);
 		Event end = diagram.addEvent("End", EventType.END, null, null, null);
@@ -177,14 +204,17 @@ public class RoleClusterPlugin {
 			for (FlexNode n : sf) {
 				Activity a = activityByLabel.get(n.getLabel());
 				diagram.addFlow(start, a, "");
+				flows++;
 			}
 		}
 		for (SetFlex sf : endTaskSet) {
 			for (FlexNode n : sf) {
 				Activity a = activityByLabel.get(n.getLabel());
 				diagram.addFlow(a, end, "");
+				flows++;
 			}
 		}
+		event.finish(BPMNIFY, "Add start and end events", flows, 0);
 		
 		
 		/*
@@ -192,6 +222,8 @@ public class RoleClusterPlugin {
 		 */
 		progress.setCaption("Building swimlanes...");
 		progress.setValue(3);
+		event = new PluginStageEvent();
+		event.start();
 		
 		HashMap<Integer, Collection<HATreeNode>> groups = cluster.buildGroupsCutAt(cut);
 		
@@ -209,6 +241,7 @@ public class RoleClusterPlugin {
 				}
 			}
 		}
+		event.finish(BPMNIFY, "Build swimlanes", groups.size(), 0);
 		
 		progress.setCaption("Done!");
 		progress.setValue(3);
@@ -255,84 +288,36 @@ public class RoleClusterPlugin {
 			userAccessible = true, help = "Clusters activities over different groups")
 	@UITopiaVariant(affiliation = "Siav", author = "Alessandro Bruni", email = "alessandro.bruni@gmail.com")
 	public static HACluster clusterRoles(PluginContext context, XLog log) throws Exception {
-		HashMap<String, HashMap<String, Integer>> actByUser = new HashMap<String, HashMap<String, Integer>>();
-		HashMap<String, Integer> userMap = new HashMap<String, Integer>();
-		ArrayList<String> userId = new ArrayList<String>();
-		HashMap<String, Instance> activityDS = new HashMap<String, Instance>();
-		int nextUserId = 0;
+		ActivityProfileBuilder profiles = new ActivityProfileBuilder();
 		
-		Progress progress = context.getProgress();
+		final Progress progress = context.getProgress();
 		progress.setMinimum(0);
-		progress.setMaximum(3);
+		progress.setMaximum(103);
 
 		/*
 		 * STEP 1: Count the activities by user
 		 */
 		progress.setValue(0);
 		progress.setCaption("Counting..");
-		// Iterate over traces
-		for (XTrace trace : log) {
-
-			// Iterate over events
-			for (XEvent event : trace) {
-				XAttributeMap attributes = event.getAttributes();
-
-				//XAttributeLiteral transition = (XAttributeLiteral)attributes.get("lifecycle:transition");
-				//if (transition.getValue().equals("complete")) {
-
-				String activity = ((XAttributeLiteral) attributes.get("concept:name")).getValue();
-				HashMap<String, Integer> userCount;
-				if (!actByUser.containsKey(activity))
-					userCount = actByUser.put(activity, new HashMap<String, Integer>());
-				else
-					userCount = actByUser.get(activity);
-
-				XAttributeLiteral xresource = (XAttributeLiteral) attributes.get("org:resource");
-				if (xresource != null) {
-					String resource = xresource.getValue();
-					int count;
-					if (!userCount.containsKey(resource))
-						count = 0;
-					else
-						count = userCount.get(resource);
-					userCount.put(resource, count + 1);
-
-					if (!userMap.containsKey(resource)) {
-						userMap.put(resource, nextUserId);
-						userId.add(resource);
-						nextUserId += 1;
-					}
-				}
-
-				//}
-			}
-		}
+		PluginStageEvent event = new PluginStageEvent();
+		event.start();
+		profiles.addLog(log, Runtime.getRuntime().availableProcessors());
+		event.finish(CLUSTER_ROLES, "Count activities by resource", log.size(), profiles.getResourceCount());
 
 		/*
 		 * STEP 2: Build data for clustering
 		 */
 		progress.setCaption("Building data for clustering...");
 		progress.setValue(1);
-		System.out.println("# Activities: " + actByUser.size());
+		event = new PluginStageEvent();
+		event.start();
 		
 		Distance distance = EuclideanDistance.create();
-		HAClusterer clusterer = new HAClusterer(nextUserId, distance);
-		for (Map.Entry<String, HashMap<String, Integer>> userCount : actByUser.entrySet()) {
-			System.out.println("# Users: " + userCount.getValue().size());
-			System.out.print(userCount.getKey());
-
-			double[] instance = new double[nextUserId];
-
-			for (Map.Entry<String, Integer> entry : userCount.getValue().entrySet()) {
-				int index = userMap.get(entry.getKey());
-				int count = entry.getValue();
-
-				System.out.print(" [" + index + "]=" + entry.getKey() + "->" + entry.getValue());
-				instance[index] = Math.log(count + 1); // TODO: change this
-			}
-			System.out.println();
-			clusterer.addInstance(instance, userCount.getKey());
+		HAClusterer clusterer = new HAClusterer(profiles.getResourceCount(), distance);
+		for (int activity = 0; activity < profiles.getActivityCount(); activity++) {
+			clusterer.addInstance(profiles.getProfile(activity), profiles.getActivity(activity));
 		}
+		event.finish(CLUSTER_ROLES, "Build profiles", profiles.getActivityCount(), profiles.getResourceCount());
 
 		/*
 		 * STEP 3: Cluster and classify the activities
@@ -340,10 +325,38 @@ public class RoleClusterPlugin {
 		progress.setCaption("Clustering...");
 		progress.setValue(2);
 
-		HACluster cluster = clusterer.cluster();
+		// one step per percent of the merges, cancellable between merges
+		clusterer.setMonitor(new ClusteringMonitor() {
+			private int percent = -1;
+
+			public void merged(int merges, int total, long remainingMillis) {
+				int done = (int) (100L * merges / total);
+				if (done != percent) {
+					percent = done;
+					long seconds = (remainingMillis + 999) / 1000;
+					progress.setCaption(String.format("Clustering... %d%%, %d:%02d left", done, seconds / 60,
+							seconds % 60));
+					progress.setValue(2 + done);
+				}
+			}
+
+			public boolean isCancelled() {
+				return progress.isCancelled();
+			}
+		});
+		HACluster cluster;
+		event = new PluginStageEvent();
+		event.start();
+		try {
+			cluster = clusterer.cluster();
+		} catch (CancellationException e) {
+			context.getFutureResult(0).cancel(true);
+			return null;
+		}
+		event.finish(CLUSTER_ROLES, "Cluster", profiles.getActivityCount(), profiles.getResourceCount());
 		
 		progress.setCaption("Done!");
-		progress.setValue(3);
+		progress.setValue(103);
 
 		return cluster;
 	}
@@ -0,0 +1,103 @@
+package it.processmining.clustering.hierarchical;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of the cut index on heights that do not grow towards the root
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class CutIndexTest {
+
+	private int currentGroupId;
+
+	/**
+	 * Clusters random profiles by cosine similarity, whose merge heights shrink
+	 * towards the root, and compares every query of the index with a walk of
+	 * the hierarchy
+	 */
+	@Test
+	public void cutsNonMonotoneHeights() {
+		Linkage[] linkages = { SingleLinkage.create(), AverageLinkage.create(), CentroidLinkage.create() };
+		boolean nonMonotone = false;
+		for (int seed = 0; seed < 30; seed++) {
+			Random random = new Random(seed);
+			HAClusterer clusterer = new HAClusterer(3, CosineSimilarityDistance.create());
+			clusterer.setLinkage(linkages[seed % linkages.length]);
+			for (int a = 0; a < 40; a++) {
+				double[] profile = { random.nextGaussian(), random.nextGaussian(), random.nextGaussian() };
+				clusterer.addInstance(profile, "Instance " + a);
+			}
+			HACluster cluster = clusterer.cluster();
+			HATreeNode root = cluster.getRootNode();
+			nonMonotone |= !isMonotone(root);
+
+			List<Double> thresholds = new ArrayList<Double>();
+			for (int t = 0; t <= 20; t++) {
+				thresholds.add(t / 20.);
+			}
+			addHeights(root, root, thresholds);
+			CutIndex index = cluster.getCutIndex();
+			for (double threshold : thresholds) {
+				HashMap<Integer, Collection<HATreeNode>> expected = new HashMap<Integer, Collection<HATreeNode>>();
+				currentGroupId = 0;
+				walk(root, root, expected, threshold);
+
+				assertEquals(expected, cluster.buildGroupsCutAt(threshold));
+				assertEquals(expected.size(), index.getGroupCount(threshold));
+				for (Integer group : expected.keySet()) {
+					for (HATreeNode leaf : expected.get(group)) {
+						assertEquals(group.intValue(), index.getGroup(leaf.getId(), threshold));
+					}
+				}
+			}
+		}
+		assertTrue("no non-monotone hierarchy was tested", nonMonotone);
+	}
+
+	/**
+	 * The cut of a hierarchy, as a walk splitting every merge above the threshold
+	 */
+	private void walk(HATreeNode node, HATreeNode root, HashMap<Integer, Collection<HATreeNode>> groupMap,
+			double threshold) {
+		if (node.isLeaf()) {
+			if (!groupMap.containsKey(currentGroupId)) {
+				groupMap.put(currentGroupId, new ArrayList<HATreeNode>());
+			}
+			groupMap.get(currentGroupId).add(node);
+		} else {
+			walk(node.getLeft(), root, groupMap, threshold);
+			if (node.getMaxDistance() / root.getMaxDistance() > threshold) {
+				currentGroupId++;
+			}
+			walk(node.getRight(), root, groupMap, threshold);
+		}
+	}
+
+	private static void addHeights(HATreeNode node, HATreeNode root, List<Double> heights) {
+		if (!node.isLeaf()) {
+			heights.add(node.getMaxDistance() / root.getMaxDistance());
+			addHeights(node.getLeft(), root, heights);
+			addHeights(node.getRight(), root, heights);
+		}
+	}
+
+	private static boolean isMonotone(HATreeNode node) {
+		if (node.isLeaf()) {
+			return true;
+		}
+		return node.getLeft().getMaxDistance() <= node.getMaxDistance()
+				&& node.getRight().getMaxDistance() <= node.getMaxDistance() && isMonotone(node.getLeft())
+				&& isMonotone(node.getRight());
+	}
+}
@@ -0,0 +1,33 @@
+package it.processmining.clustering.hierarchical;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests of the clustering engines on undefined distances
+ *
+ * @author Alessandro Bruni <alessandro.bruni@gmail.com>
+ *
+ */
+public class HeapEngineTest {
+
+	/**
+	 * Clusters zero vectors, whose cosine distances are all NaN, with every
+	 * linkage: each clustering must end and contain every instance
+	 */
+	@Test(timeout = 10000)
+	public void clustersUndefinedDistances() {
+		Linkage[] linkages = { null, SingleLinkage.create(), AverageLinkage.create(), WardLinkage.create(),
+				CentroidLinkage.create(), MedianLinkage.create() };
+		for (Linkage linkage : linkages) {
+			HAClusterer clusterer = new HAClusterer(3, CosineSimilarityDistance.create());
+			clusterer.setLinkage(linkage);
+			for (int a = 0; a < 50; a++) {
+				clusterer.addInstance(new double[3], "Zero " + a);
+			}
+			String name = linkage == null ? "centroid recompute" : linkage.getClass().getSimpleName();
+			assertEquals(name, 50, clusterer.cluster().getRootNode().getSize());
+		}
+	}
+}